@@ -38,6 +38,16 @@ public class SporesSim extends Canvas
     // Random numbers.
     private Random random;
 
+    // Search parameters, as in the Spores client.
+    static final int FLOOD_TTL = 10;
+    static final int WALKERS = 4;
+    static final int WALK_TTL = 128;
+    static final int WALK_CHECK_HOPS = 4;
+
+    // Messages sent and hits by last search.
+    int searchMessages;
+    boolean searchHit;
+
     // Constructor.
     public SporesSim(int networkSize, int numActive,
         int peerCacheSize, int filePushes, Dimension displaySize)
@@ -240,6 +250,163 @@ public class SporesSim extends Canvas
         return false;
     }
 
+    // Flood search for file from random active peer, counting messages.
+    // Each peer forwards the search to all its neighbours but the one
+    // it came from, unless it has the file or the search is out of hops.
+    public boolean floodSearch()
+    {
+        int[][] links = getLinks();
+        int origin = getOrigin();
+        searchMessages = 0;
+        searchHit = false;
+        if (origin == -1) return false;
+        boolean[] seen = new boolean[network.length];
+        seen[origin] = true;
+        LinkedList current = new LinkedList();
+        current.add(new int[] { origin, -1 });
+        for (int hop = 0; hop < FLOOD_TTL && current.size() > 0; hop++)
+        {
+            LinkedList next = new LinkedList();
+            for (int i = 0; i < current.size(); i++)
+            {
+                int[] entry = (int[])current.get(i);
+                int peer = entry[0];
+                for (int j = 0; j < links[peer].length; j++)
+                {
+                    int to = links[peer][j];
+                    if (to == entry[1]) continue;
+                    searchMessages++;
+                    if (seen[to]) continue;
+                    seen[to] = true;
+                    if (network[to].hasFile())
+                    {
+                        searchHit = true;
+                    } else {
+                        next.add(new int[] { to, peer });
+                    }
+                }
+            }
+            current = next;
+        }
+        return searchHit;
+    }
+
+    // Random walk search for file from random active peer, counting
+    // messages. Walkers move in step, each to a random neighbour other
+    // than the one it came from. A walker finding the file sends a hit
+    // back and stops; every few hops a walker checks back with the
+    // origin, stopping if the file has been found.
+    public boolean walkSearch()
+    {
+        int[][] links = getLinks();
+        int origin = getOrigin();
+        searchMessages = 0;
+        searchHit = false;
+        if (origin == -1 || links[origin].length == 0) return false;
+        int[] at = new int[WALKERS];
+        int[] from = new int[WALKERS];
+        for (int i = 0; i < WALKERS; i++)
+        {
+            at[i] = origin;
+            from[i] = -1;
+        }
+        for (int hop = 1; hop <= WALK_TTL; hop++)
+        {
+            boolean walking = false;
+            for (int i = 0; i < WALKERS; i++)
+            {
+                if (at[i] == -1) continue;
+
+                // Check back with origin.
+                if (hop > 1 && (hop - 1) % WALK_CHECK_HOPS == 0)
+                {
+                    searchMessages++;
+                    if (searchHit)
+                    {
+                        at[i] = -1;
+                        continue;
+                    }
+                }
+
+                // Step to random neighbour.
+                int[] next = links[at[i]];
+                if (next.length == 0)
+                {
+                    at[i] = -1;
+                    continue;
+                }
+                int to = next[random.nextInt(next.length)];
+                if (to == from[i] && next.length > 1)
+                {
+                    while (to == from[i]) to = next[random.nextInt(next.length)];
+                }
+                searchMessages++;
+                from[i] = at[i];
+                at[i] = to;
+                if (network[to].hasFile() && to != origin)
+                {
+                    searchMessages++;
+                    searchHit = true;
+                    at[i] = -1;
+                    continue;
+                }
+                walking = true;
+            }
+            if (!walking) break;
+        }
+        return searchHit;
+    }
+
+    // Get neighbours of active peers, connections being two-way.
+    private int[][] getLinks()
+    {
+        LinkedList[] lists = new LinkedList[network.length];
+        for (int i = 0; i < network.length; i++)
+        {
+            lists[i] = new LinkedList();
+        }
+        for (int i = 0; i < network.length; i++)
+        {
+            if (!network[i].isConnected()) continue;
+            int[] connected = network[i].getConnected();
+            for (int j = 0; j < connected.length; j++)
+            {
+                int peer = connected[j];
+                if (peer == -1 || peer == i || !network[peer].isConnected()) continue;
+                if (!lists[i].contains(Integer.valueOf(peer)))
+                {
+                    lists[i].add(Integer.valueOf(peer));
+                    lists[peer].add(Integer.valueOf(i));
+                }
+            }
+        }
+        int[][] links = new int[network.length][];
+        for (int i = 0; i < network.length; i++)
+        {
+            links[i] = new int[lists[i].size()];
+            for (int j = 0; j < links[i].length; j++)
+            {
+                links[i][j] = ((Integer)lists[i].get(j)).intValue();
+            }
+        }
+        return links;
+    }
+
+    // Get random active peer without the file, -1 if none.
+    private int getOrigin()
+    {
+        LinkedList candidates = new LinkedList();
+        for (int i = 0; i < network.length; i++)
+        {
+            if (network[i].isConnected() && !network[i].hasFile())
+            {
+                candidates.add(Integer.valueOf(i));
+            }
+        }
+        if (candidates.size() == 0) return -1;
+        return ((Integer)candidates.get(random.nextInt(candidates.size()))).intValue();
+    }
+
     // How many peers have file?
     public int fileCount()
     {
@@ -34,6 +34,9 @@ public class SporesSimApp implements Runnable
     static final int DEFAULT_FILE_PUSHES = 10;
     static final Dimension DEFAULT_SCREEN_SIZE = new Dimension(600, 700);
 
+    // Searches run by each method when comparing them.
+    static final int COMPARE_SEARCHES = 100;
+
     // Settings.
     static int networkSize = DEFAULT_NETWORK_SIZE;
     static int numActive = DEFAULT_ACTIVE_PEERS;
@@ -51,6 +54,7 @@ public class SporesSimApp implements Runnable
         JButton stepButton;
         JButton uploadButton;
         JButton searchButton;
+        JButton compareButton;
         JButton resetButton;
         JTextField outputText;
 
@@ -69,6 +73,9 @@ public class SporesSimApp implements Runnable
             searchButton = new JButton("Search");
             searchButton.addActionListener(this);
             panel.add(searchButton);
+            compareButton = new JButton("Compare");
+            compareButton.addActionListener(this);
+            panel.add(compareButton);
             resetButton = new JButton("Reset");
             resetButton.addActionListener(this);
             panel.add(resetButton);
@@ -119,6 +126,14 @@ public class SporesSimApp implements Runnable
                 return;
             }
 
+            // Compare flood and random walk searches?
+            if (evt.getSource() == (Object)compareButton)
+            {
+                outputText.setText(compare());
+                sporesSim.display();
+                return;
+            }
+
             // Reset?
             if (evt.getSource() == (Object)resetButton)
             {
@@ -131,6 +146,31 @@ public class SporesSimApp implements Runnable
     // Controls.
     Controls controls;
 
+    // Compare messages per hit of flood and random walk searches.
+    String compare()
+    {
+        int floodMessages = 0, floodHits = 0;
+        int walkMessages = 0, walkHits = 0;
+        for (int i = 0; i < COMPARE_SEARCHES; i++)
+        {
+            if (sporesSim.floodSearch()) floodHits++;
+            floodMessages += sporesSim.searchMessages;
+            if (sporesSim.walkSearch()) walkHits++;
+            walkMessages += sporesSim.searchMessages;
+        }
+        return "Messages/hit: flood = " + perHit(floodMessages, floodHits) +
+            " (" + floodHits + "/" + COMPARE_SEARCHES + " hits), walk = " +
+            perHit(walkMessages, walkHits) +
+            " (" + walkHits + "/" + COMPARE_SEARCHES + " hits)";
+    }
+
+    // Messages per hit.
+    static String perHit(int messages, int hits)
+    {
+        if (hits == 0) return "-";
+        return String.valueOf((double)Math.round(messages * 10.0 / hits) / 10.0);
+    }
+
     // Constructor.
     public SporesSimApp()
     {
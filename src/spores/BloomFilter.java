@@ -0,0 +1,133 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.security.*;
+
+
+/**
+ * Bloom filter of shared file names and codes.
+ * <p>
+ * A peer summarizes its shared files in a filter for its neighbours,
+ * who then forward the last hop of a search only to peers whose
+ * filter may contain the file. A filter can give false matches but
+ * never misses a key added to it.
+ */
+public class BloomFilter implements Parameters {
+   // Filter bits and hashes per key.
+   int    size;
+   int    hashes;
+   byte[] bits;
+
+   // Constructors.
+   public BloomFilter(int size, int hashes)
+   {
+      this.size   = size;
+      this.hashes = hashes;
+      bits        = new byte[size / 8];
+   }
+
+
+   public BloomFilter(byte[] bits, int hashes)
+   {
+      this.bits   = bits;
+      this.hashes = hashes;
+      size        = bits.length * 8;
+   }
+
+
+   // Add key, returning the bits it sets.
+   int[] add(String key)
+   {
+      int[] positions = getPositions(key);
+
+      set(positions);
+
+      return(positions);
+   }
+
+
+   // Set bits.
+   void set(int[] positions)
+   {
+      for (int i = 0; i < positions.length; i++)
+      {
+         bits[positions[i] >> 3] |= (byte)(1 << (positions[i] & 7));
+      }
+   }
+
+
+   // May filter contain key?
+   boolean mightContain(String key)
+   {
+      int[] positions = getPositions(key);
+
+      for (int i = 0; i < positions.length; i++)
+      {
+         if ((bits[positions[i] >> 3] & (1 << (positions[i] & 7))) == 0)
+         {
+            return(false);
+         }
+      }
+
+      return(true);
+   }
+
+
+   // Bits for key: double hashing on the key's MD5 digest.
+   private int[] getPositions(String key)
+   {
+      byte[] digest;
+
+      try {
+         digest = MessageDigest.getInstance("MD5").digest(
+            key.getBytes("UTF-8"));
+      }
+      catch (Exception e) {
+         // Every JDK has MD5 and UTF-8.
+         throw new IllegalStateException(e.toString());
+      }
+
+      int   h1        = getInt(digest, 0);
+      int   h2        = getInt(digest, 4) | 1;
+      int[] positions = new int[hashes];
+
+      for (int i = 0; i < hashes; i++)
+      {
+         positions[i] = ((h1 + (i * h2)) & 0x7fffffff) % size;
+      }
+
+      return(positions);
+   }
+
+
+   // Get int from bytes.
+   private static int getInt(byte[] data, int offset)
+   {
+      return(((data[offset] & 0xff) << 24) |
+             ((data[offset + 1] & 0xff) << 16) |
+             ((data[offset + 2] & 0xff) << 8) |
+             (data[offset + 3] & 0xff));
+   }
+
+
+   // Filter key for file name.
+   static String getNameKey(byte type, String name)
+   {
+      return("name:" + type + ":" + name);
+   }
+
+
+   // Filter key for uniqueness code.
+   static String getCodeKey(byte type, String code)
+   {
+      return("code:" + type + ":" + code);
+   }
+}
@@ -0,0 +1,223 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+import java.util.*;
+
+
+/**
+ * Pool of idle peer connections.
+ * <p>
+ * A connection is taken from the pool for one request and response,
+ * then released for reuse or closed if the exchange failed. Idle
+ * connections are closed after CONNECTION_IDLE_TIME.
+ * <p>
+ * New connections ask the peer server for framed messages; peers that
+ * only accept text messages are remembered and sent text requests.
+ */
+public class ConnectionPool extends Thread implements Parameters {
+   // Utilities.
+   private Utils utils;
+
+   // Idle connections by peer key.
+   private Hashtable idle;
+
+   // Peers that close connections after each request.
+   private Hashtable closingPeers;
+
+   // Peers that only accept text messages.
+   private Hashtable textPeers;
+
+   // Constructor.
+   public ConnectionPool(Utils utils)
+   {
+      this.utils   = utils;
+      idle         = new Hashtable();
+      closingPeers = new Hashtable();
+      textPeers    = new Hashtable();
+      setDaemon(true);
+   }
+
+
+   // Get a connection to a peer, reusing an idle one if possible.
+   PeerConnection get(String host, int port, int localPort)
+   throws IOException
+   {
+      PeerConnection connection;
+      String         key = PeerConnection.getKey(host, port);
+
+      while ((connection = removeIdle(key)) != null)
+      {
+         if (connection.isAlive())
+         {
+            return(connection);
+         }
+
+         // Peer closed connection after a single request?
+         if (connection.requests == 1)
+         {
+            closingPeers.put(key, Boolean.TRUE);
+         }
+
+         connection.close();
+      }
+
+      connection = new PeerConnection(utils, host, port);
+
+      if (textPeers.get(key) != null)
+      {
+         return(connection);
+      }
+
+      try {
+         if (connection.negotiate(localPort))
+         {
+            return(connection);
+         }
+      }
+      catch (IOException e) {
+         connection.close();
+         throw e;
+      }
+
+      // Text peer: negotiation may have closed the connection.
+      textPeers.put(key, Boolean.TRUE);
+      connection.close();
+
+      return(new PeerConnection(utils, host, port));
+   }
+
+
+   // Release connection after a completed request.
+   void release(PeerConnection connection)
+   {
+      String key = connection.getKey();
+
+      if (closingPeers.get(key) != null)
+      {
+         connection.close();
+
+         return;
+      }
+
+      connection.lastUsed = System.currentTimeMillis();
+
+      synchronized (idle) {
+         LinkedList connections = (LinkedList)idle.get(key);
+
+         if (connections == null)
+         {
+            connections = new LinkedList();
+            idle.put(key, connections);
+         }
+
+         if (connections.size() < MAX_IDLE_CONNECTIONS)
+         {
+            connections.addFirst(connection);
+
+            return;
+         }
+      }
+
+      connection.close();
+   }
+
+
+   // Close connection after a failed request.
+   void close(PeerConnection connection)
+   {
+      connection.close();
+   }
+
+
+   // Is peer known to only accept text messages?
+   boolean isTextPeer(String host, int port)
+   {
+      return(textPeers.get(PeerConnection.getKey(host, port)) != null);
+   }
+
+
+   // Remove most recently used idle connection to peer.
+   private PeerConnection removeIdle(String key)
+   {
+      synchronized (idle) {
+         LinkedList connections = (LinkedList)idle.get(key);
+
+         if ((connections == null) || (connections.size() == 0))
+         {
+            return(null);
+         }
+
+         PeerConnection connection = (PeerConnection)connections.removeFirst();
+
+         if (connections.size() == 0)
+         {
+            idle.remove(key);
+         }
+
+         return(connection);
+      }
+   }
+
+
+   /**
+    * Close expired idle connections.
+    */
+   public void run()
+   {
+      PeerConnection connection;
+      LinkedList     connections;
+      LinkedList     expired = new LinkedList();
+
+      while ((Thread.currentThread() == this) && !isInterrupted())
+      {
+         try {
+            Thread.sleep(CONNECTION_IDLE_TIME / 2);
+         }
+         catch (InterruptedException e) {
+            break;
+         }
+
+         long now = System.currentTimeMillis();
+
+         synchronized (idle) {
+            Iterator keys = idle.values().iterator();
+
+            while (keys.hasNext())
+            {
+               connections = (LinkedList)keys.next();
+
+               for (Iterator i = connections.iterator(); i.hasNext(); )
+               {
+                  connection = (PeerConnection)i.next();
+
+                  if ((now - connection.lastUsed) > CONNECTION_IDLE_TIME)
+                  {
+                     i.remove();
+                     expired.add(connection);
+                  }
+               }
+
+               if (connections.size() == 0)
+               {
+                  keys.remove();
+               }
+            }
+         }
+
+         while (expired.size() > 0)
+         {
+            ((PeerConnection)expired.removeFirst()).close();
+         }
+      }
+   }
+}
@@ -143,8 +143,17 @@ public class Controls extends JFrame implements Parameters {
    // Random numbers.
    Random random;
 
-   // Search request cache.
-   Hashtable searchCache;
+   // Search IDs seen.
+   SearchTable searchCache;
+
+   // File locations found by searches.
+   LocationCache locationCache;
+
+   // Searches being relayed.
+   PendingSearches pendingSearches;
+
+   // Asynchronous search relay.
+   SearchRelay searchRelay;
 
    /**Construct the controls*/
    public Controls()
@@ -166,8 +175,14 @@ public class Controls extends JFrame implements Parameters {
       // Initialize random number generator.
       random = new Random();
 
-      // Acquire search request cache.
-      searchCache = new Hashtable();
+      // Create table of search IDs seen.
+      searchCache = new SearchTable();
+
+      // Create file location cache.
+      locationCache = new LocationCache();
+
+      // Create table of searches being relayed.
+      pendingSearches = new PendingSearches();
 
       // Get folder names.
       File folder = new File(privateFolder);
@@ -210,13 +225,15 @@ public class Controls extends JFrame implements Parameters {
       privateFiles = new PrivateFiles(this);
       sharedFiles  = new SharedFiles(this);
       transfer     = new Transfer(this);
+      searchRelay  = new SearchRelay(this);
       server       = new Server(this);
 
-      // Start server and peer-searching threads.
+      // Start server, peer-searching and connection pool threads.
       server.setDaemon(true);
       server.start();
       p2p.setDaemon(true);
       p2p.start();
+      utils.connectionPool.start();
    }
 
 
@@ -510,6 +527,7 @@ public class Controls extends JFrame implements Parameters {
       if (e.getID() == WindowEvent.WINDOW_CLOSING)
       {
          properties.save();
+         HashCache.saveAll();
          saveConnections(peerText, PEER_FILE);
          saveConnections(webCacheText, WEB_CACHE_FILE);
          saveConnections(webCacheDiscText, WEB_CACHE_DISCOVERY_FILE);
@@ -601,6 +619,8 @@ public class Controls extends JFrame implements Parameters {
       writer.write(privateFolder + " - private file folder.<br>\n");
       writer.write(sharedFolder + " - shared file folder.<br>\n");
       writer.write(TRANSFER_FOLDER + " - transfer file folder.<br>\n");
+      writer.write(HASH_TREE_FOLDER + " - shared file hash trees.<br>\n");
+      writer.write(HASH_CACHE_FILE + " - file uniqueness code cache.<br>\n");
       writer.write("</BODY>\n");
       writer.write("</HTML>\n");
       readMe.setText(writer.toString());
@@ -0,0 +1,135 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Parallel folder tree walk.
+ * <p>
+ * The members of a folder are visited by a fork/join pool, splitting
+ * the name-ordered member list into batches of SCAN_BATCH_SIZE.
+ * A visitor of a sub-folder scans it in turn, so the whole tree is
+ * spread over the pool. Results are returned in name order, so
+ * anything built from them, such as a folder hash, does not depend
+ * on scheduling.
+ */
+public class FolderScan implements Parameters {
+   // Scanning pool.
+   private static ForkJoinPool pool;
+
+   // Member visitor.
+   interface Visitor {
+      // Visit file or folder, returning a result.
+      Object visit(File file);
+   }
+
+
+   // Get the pool.
+   static synchronized ForkJoinPool getPool()
+   {
+      if (pool == null)
+      {
+         pool = new ForkJoinPool(SCAN_THREADS);
+      }
+
+      return(pool);
+   }
+
+
+   // Visit members of folder in parallel.
+   // Return results in member name order, or null if not a folder.
+   static Object[] scan(File folder, Visitor visitor)
+   {
+      String[] fileNames = listFileNames(folder);
+
+      if (fileNames == null)
+      {
+         return(null);
+      }
+
+      Object[] results = new Object[fileNames.length];
+      ScanTask task    = new ScanTask(folder, fileNames, 0, fileNames.length,
+                                      visitor, results);
+
+      // Nested scans run in the calling worker.
+      if (ForkJoinTask.inForkJoinPool())
+      {
+         task.invoke();
+      }
+      else
+      {
+         getPool().invoke(task);
+      }
+
+      return(results);
+   }
+
+
+   // Name-ordered member names of folder, or null if not a folder.
+   static String[] listFileNames(File folder)
+   {
+      String[] fileNames = folder.list();
+
+      if (fileNames != null)
+      {
+         Arrays.sort(fileNames);
+      }
+
+      return(fileNames);
+   }
+
+
+   // Task visiting a range of folder members.
+   static class ScanTask extends RecursiveAction {
+      File     folder;
+      String[] fileNames;
+      int      from;
+      int      to;
+      Visitor  visitor;
+      Object[] results;
+
+      ScanTask(File folder, String[] fileNames, int from, int to,
+               Visitor visitor, Object[] results)
+      {
+         this.folder    = folder;
+         this.fileNames = fileNames;
+         this.from      = from;
+         this.to        = to;
+         this.visitor   = visitor;
+         this.results   = results;
+      }
+
+
+      protected void compute()
+      {
+         // Split large range.
+         if ((to - from) > SCAN_BATCH_SIZE)
+         {
+            int middle = (from + to) / 2;
+            invokeAll(new ScanTask(folder, fileNames, from, middle,
+                                   visitor, results),
+                      new ScanTask(folder, fileNames, middle, to,
+                                   visitor, results));
+
+            return;
+         }
+
+         for (int i = from; i < to; i++)
+         {
+            results[i] = visitor.visit(new File(folder, fileNames[i]));
+         }
+      }
+   }
+}
@@ -0,0 +1,188 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+import java.nio.file.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * File folder watcher.
+ * <p>
+ * Watches a folder and its sub-folders for created, deleted and
+ * modified files, and reports which top-level files or folders
+ * changed. Events are collected until none arrive for WATCH_DELAY
+ * ms, so a file being written is reported once it settles. If events
+ * are lost, the whole folder is reported as changed.
+ */
+public class FolderWatcher extends Thread implements Parameters {
+   // Change listener.
+   interface Listener {
+      // File or folder of given name in watched folder changed.
+      void fileChanged(String name);
+
+      // Changes were lost: rescan whole folder.
+      void folderChanged();
+   }
+
+   // Watched folder.
+   String folder;
+   Path   root;
+
+   // Listener.
+   Listener listener;
+
+   // Watch service and watched folders by key.
+   WatchService watcher;
+   Hashtable    keys;
+
+   // Quit flag.
+   volatile boolean quit;
+
+   // Constructor.
+   public FolderWatcher(String folder, Listener listener) throws IOException
+   {
+      this.folder   = folder;
+      this.listener = listener;
+      root          = new File(folder).getAbsoluteFile().toPath();
+      watcher       = root.getFileSystem().newWatchService();
+      keys          = new Hashtable();
+      quit          = false;
+      setDaemon(true);
+
+      register(root);
+   }
+
+
+   // Watch folder and its sub-folders.
+   void register(Path dir) throws IOException
+   {
+      WatchKey key = dir.register(watcher,
+                                  new WatchEvent.Kind[]
+                                  {
+                                     StandardWatchEventKinds.ENTRY_CREATE,
+                                     StandardWatchEventKinds.ENTRY_DELETE,
+                                     StandardWatchEventKinds.ENTRY_MODIFY
+                                  }
+                                  );
+
+      keys.put(key, dir);
+
+      File[] files = dir.toFile().listFiles();
+
+      for (int i = 0; (files != null) && (i < files.length); i++)
+      {
+         if (files[i].isDirectory())
+         {
+            register(files[i].toPath());
+         }
+      }
+   }
+
+
+   // Report changes until quit.
+   public void run()
+   {
+      try {
+         while (!quit)
+         {
+            WatchKey   key      = watcher.take();
+            LinkedList names    = new LinkedList();
+            boolean    overflow = false;
+
+            // Collect changes until quiet.
+            while (key != null)
+            {
+               Path dir    = (Path)keys.get(key);
+               List events = key.pollEvents();
+
+               for (int i = 0; (dir != null) && (i < events.size()); i++)
+               {
+                  WatchEvent event = (WatchEvent)events.get(i);
+
+                  if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                  {
+                     overflow = true;
+
+                     continue;
+                  }
+
+                  Path child = dir.resolve((Path)event.context());
+
+                  // Watch new sub-folder.
+                  if ((event.kind() == StandardWatchEventKinds.ENTRY_CREATE) &&
+                      Files.isDirectory(child))
+                  {
+                     try {
+                        register(child);
+                     }
+                     catch (IOException e) {
+                        overflow = true;
+                     }
+                  }
+
+                  // Report top-level file or folder.
+                  String name = root.relativize(child).getName(0).toString();
+
+                  if (!names.contains(name))
+                  {
+                     names.add(name);
+                  }
+               }
+
+               if (!key.reset())
+               {
+                  keys.remove(key);
+               }
+
+               key = watcher.poll(WATCH_DELAY, TimeUnit.MILLISECONDS);
+            }
+
+            if (quit)
+            {
+               break;
+            }
+
+            if (overflow)
+            {
+               listener.folderChanged();
+            }
+            else
+            {
+               for (int i = 0; i < names.size(); i++)
+               {
+                  listener.fileChanged((String)names.get(i));
+               }
+            }
+         }
+      }
+      catch (InterruptedException e) {
+      }
+      catch (ClosedWatchServiceException e) {
+      }
+   }
+
+
+   // Stop watching.
+   void quit()
+   {
+      quit = true;
+
+      try {
+         watcher.close();
+      }
+      catch (IOException e) {
+      }
+   }
+}
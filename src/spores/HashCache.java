@@ -0,0 +1,306 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+import java.util.*;
+
+
+/**
+ * Uniqueness code cache.
+ * <p>
+ * Codes are kept by absolute path with the size and modification
+ * time they were computed for, and recomputed when either changes.
+ * A folder entry holds the total size and latest modification time
+ * of the folder and its contents, so a changed, added or removed
+ * member invalidates it. Each hash engine has its own cache, kept
+ * between runs in the hash cache file, suffixed with the engine name
+ * for engines other than MD5.
+ */
+public class HashCache implements Parameters {
+   // Caches by engine name.
+   private static Hashtable caches = new Hashtable();
+
+   // Hash engine and cache file.
+   HashEngine engine;
+   String     cacheFile;
+
+   // Entries by path.
+   Hashtable entries;
+
+   // Changed since saved?
+   boolean dirty;
+
+   // Constructor.
+   protected HashCache(HashEngine engine)
+   {
+      this.engine = engine;
+      entries     = new Hashtable();
+      dirty       = false;
+
+      if (engine.name.equals(MD5_HASH))
+      {
+         cacheFile = HASH_CACHE_FILE;
+      }
+      else
+      {
+         cacheFile = HASH_CACHE_FILE + "-" + engine.name;
+      }
+   }
+
+
+   // Get the cache for local codes.
+   static HashCache getCache()
+   {
+      return(getCache(HashEngine.getDefault()));
+   }
+
+
+   // Get the cache for an engine, loading it if needed.
+   static synchronized HashCache getCache(HashEngine engine)
+   {
+      HashCache cache = (HashCache)caches.get(engine.name);
+
+      if (cache == null)
+      {
+         cache = new HashCache(engine);
+         cache.load(cache.cacheFile);
+         caches.put(engine.name, cache);
+      }
+
+      return(cache);
+   }
+
+
+   // Save all caches.
+   static synchronized void saveAll()
+   {
+      Enumeration elements = caches.elements();
+
+      while (elements.hasMoreElements())
+      {
+         ((HashCache)elements.nextElement()).save();
+      }
+   }
+
+
+   // Get uniqueness code of file or folder.
+   String getCode(String fileName)
+   {
+      File file = new File(fileName);
+
+      if (!file.exists())
+      {
+         return("");
+      }
+
+      return(getEntry(file).code);
+   }
+
+
+   // Get current entry for file or folder, computing its code if needed.
+   private Entry getEntry(File file)
+   {
+      String path     = file.getAbsolutePath();
+      Entry  entry    = (Entry)entries.get(path);
+      long   size     = 0;
+      long   modified = file.lastModified();
+      String code     = "";
+
+      if (file.isDirectory())
+      {
+         // Members are visited in parallel, in name order.
+         Object[] members = FolderScan.scan(file, new EntryVisitor());
+
+         if (members == null)
+         {
+            members = new Entry[0];
+         }
+
+         for (int i = 0; i < members.length; i++)
+         {
+            Entry member = (Entry)members[i];
+            size += member.size;
+
+            if (member.modified > modified)
+            {
+               modified = member.modified;
+            }
+         }
+
+         if ((entry != null) && (entry.size == size) &&
+             (entry.modified == modified))
+         {
+            return(entry);
+         }
+
+         // Hash of concatenated member codes.
+         for (int i = 0; i < members.length; i++)
+         {
+            code = code.concat(((Entry)members[i]).code);
+         }
+
+         code = engine.hashString(code);
+      }
+      else
+      {
+         size = file.length();
+
+         if ((entry != null) && (entry.size == size) &&
+             (entry.modified == modified))
+         {
+            return(entry);
+         }
+
+         code = engine.hashFile(path);
+      }
+
+      entry = new Entry(size, modified, code);
+
+      // Missing and unreadable files are not kept.
+      if (!code.equals(""))
+      {
+         entries.put(path, entry);
+
+         synchronized (this)
+         {
+            dirty = true;
+         }
+      }
+
+      return(entry);
+   }
+
+
+   // Load cache from file.
+   void load(String fileName)
+   {
+      DataInputStream in = null;
+
+      try {
+         in = new DataInputStream(Utils.makeBIS(fileName));
+         int count = in.readInt();
+
+         for (int i = 0; i < count; i++)
+         {
+            String path     = in.readUTF();
+            long   size     = in.readLong();
+            long   modified = in.readLong();
+            String code     = in.readUTF();
+            entries.put(path, new Entry(size, modified, code));
+         }
+      }
+      catch (FileNotFoundException e) {
+      }
+      catch (IOException e) {
+         String msgString = new String("Cannot load hash cache " +
+                                       fileName + ": " + e.toString());
+         Log.getLog().logWarning(msgString);
+      }
+      finally {
+         if (in != null)
+         {
+            try {
+               in.close();
+            }
+            catch (IOException e) {
+            }
+         }
+      }
+   }
+
+
+   // Save cache if changed, dropping entries for removed files.
+   synchronized void save()
+   {
+      if (!dirty)
+      {
+         return;
+      }
+
+      File temp = new File(cacheFile + ".tmp");
+
+      try {
+         Vector paths = new Vector(entries.keySet());
+
+         for (int i = 0; i < paths.size(); i++)
+         {
+            if (!new File((String)paths.get(i)).exists())
+            {
+               entries.remove(paths.get(i));
+            }
+         }
+
+         DataOutputStream out   = new DataOutputStream(Utils.makeBOS(temp.getPath()));
+         Vector           saved = new Vector();
+         Enumeration      keys  = entries.keys();
+
+         while (keys.hasMoreElements())
+         {
+            String path  = (String)keys.nextElement();
+            Entry  entry = (Entry)entries.get(path);
+
+            if (entry != null)
+            {
+               saved.add(path);
+               saved.add(entry);
+            }
+         }
+
+         out.writeInt(saved.size() / 2);
+
+         for (int i = 0; i < saved.size(); i += 2)
+         {
+            Entry entry = (Entry)saved.get(i + 1);
+            out.writeUTF((String)saved.get(i));
+            out.writeLong(entry.size);
+            out.writeLong(entry.modified);
+            out.writeUTF(entry.code);
+         }
+
+         out.close();
+
+         new File(cacheFile).delete();
+         temp.renameTo(new File(cacheFile));
+         dirty = false;
+      }
+      catch (IOException e) {
+         temp.delete();
+         String msgString = new String("Cannot save hash cache: " +
+                                       e.toString());
+         Log.getLog().logWarning(msgString);
+      }
+   }
+
+
+   // Folder member entry getter.
+   class EntryVisitor implements FolderScan.Visitor {
+      public Object visit(File file)
+      {
+         return(getEntry(file));
+      }
+   }
+
+
+   // Cache entry.
+   static class Entry {
+      long   size;
+      long   modified;
+      String code;
+
+      Entry(long size, long modified, String code)
+      {
+         this.size     = size;
+         this.modified = modified;
+         this.code     = code;
+      }
+   }
+}
@@ -0,0 +1,223 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+import java.security.*;
+
+import java.util.*;
+
+
+/**
+ * Uniqueness code hashing engine.
+ * <p>
+ * An engine hashes files and strings with a JDK message digest, in
+ * bulk. The MD5 engine hashes the first MAX_HASH_BYTES of a file and
+ * gives plain hex codes, as all peers have always used. Other
+ * engines hash the whole file and prefix their codes with the engine
+ * name and a colon, e.g. "sha256:...". A code thus names the engine
+ * that made it: a peer checks a code it is given with that engine,
+ * and a code from an engine it does not have matches nothing.
+ * <p>
+ * The engine for local codes is chosen with the Spores.Hash system
+ * property.
+ */
+public class HashEngine implements Parameters {
+   // Engines by name.
+   private static Hashtable  engines;
+   private static HashEngine md5Engine;
+   private static HashEngine defaultEngine;
+
+   // Engine name, JDK digest algorithm, and bytes hashed per file
+   // (0 for all).
+   String name;
+   String algorithm;
+   int    maxBytes;
+
+   // Code prefix.
+   String prefix;
+
+   // Constructor.
+   HashEngine(String name, String algorithm, int maxBytes, boolean prefixed)
+   {
+      this.name      = name;
+      this.algorithm = algorithm;
+      this.maxBytes  = maxBytes;
+
+      if (prefixed)
+      {
+         prefix = name + ":";
+      }
+      else
+      {
+         prefix = "";
+      }
+   }
+
+
+   // Register engines and choose the default.
+   private static synchronized void init()
+   {
+      if (engines != null)
+      {
+         return;
+      }
+
+      engines   = new Hashtable();
+      md5Engine = new HashEngine(MD5_HASH, "MD5", Utils.MAX_HASH_BYTES, false);
+      engines.put(md5Engine.name, md5Engine);
+      engines.put(SHA256_HASH, new HashEngine(SHA256_HASH, "SHA-256", 0, true));
+
+      String name = System.getProperty(HASH_PROPERTY, MD5_HASH);
+      defaultEngine = (HashEngine)engines.get(name);
+
+      if (defaultEngine == null)
+      {
+         Log.getLog().logWarning("Unknown hash " + name + ": using " +
+                                 MD5_HASH);
+         defaultEngine = md5Engine;
+      }
+   }
+
+
+   // Get engine for local codes.
+   static HashEngine getDefault()
+   {
+      init();
+
+      return(defaultEngine);
+   }
+
+
+   // Get engine by name, or null if none.
+   static HashEngine getEngine(String name)
+   {
+      init();
+
+      return((HashEngine)engines.get(name));
+   }
+
+
+   // Get engine that made a code, or null if unknown.
+   static HashEngine getEngineForCode(String code)
+   {
+      init();
+
+      int index = code.indexOf(':');
+
+      if (index == -1)
+      {
+         return(md5Engine);
+      }
+
+      return((HashEngine)engines.get(code.substring(0, index)));
+   }
+
+
+   // Get a digest.
+   MessageDigest getDigest()
+   {
+      try {
+         return(MessageDigest.getInstance(algorithm));
+      }
+      catch (NoSuchAlgorithmException e) {
+         // Every JDK has MD5 and SHA-256.
+         throw new IllegalStateException(e.toString());
+      }
+   }
+
+
+   // Hash file, returning code, or empty string if it cannot be read.
+   String hashFile(String fileName)
+   {
+      MessageDigest   digest = getDigest();
+      FileInputStream in     = null;
+      byte[]          data;
+      long            count  = 0;
+      int             nr;
+
+      if (maxBytes == 0)
+      {
+         data = new byte[RECEIVE_BUFFER_SIZE];
+      }
+      else
+      {
+         data = new byte[maxBytes];
+      }
+
+      try {
+         in = new FileInputStream(fileName);
+
+         while (((maxBytes == 0) || (count < maxBytes)) &&
+                ((nr = in.read(data, 0,
+                               (maxBytes == 0) ? data.length :
+                               (int)Math.min(data.length, maxBytes - count))) != -1))
+         {
+            digest.update(data, 0, nr);
+            count += nr;
+         }
+      }
+      catch (IOException e) {
+         return("");
+      }
+      finally {
+         try {
+            if (in != null)
+            {
+               in.close();
+            }
+         }
+         catch (IOException e) {
+         }
+      }
+
+      return(prefix + toHex(digest.digest()));
+   }
+
+
+   // Hash string, returning code.
+   String hashString(String string)
+   {
+      MessageDigest digest = getDigest();
+      byte[]        data   = string.getBytes();
+      int           length = data.length;
+
+      if ((maxBytes != 0) && (length > maxBytes))
+      {
+         length = maxBytes;
+      }
+
+      digest.update(data, 0, length);
+
+      return(prefix + toHex(digest.digest()));
+   }
+
+
+   // Convert hash to hex string.
+   static String toHex(byte[] hash)
+   {
+      StringBuffer buf = new StringBuffer(hash.length * 2);
+
+      for (int i = 0; i < hash.length; i++)
+      {
+         int value = hash[i] & 0xff;
+
+         if (value < 0x10)
+         {
+            buf.append("0");
+         }
+
+         buf.append(Integer.toHexString(value));
+      }
+
+      return(buf.toString());
+   }
+}
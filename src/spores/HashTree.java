@@ -0,0 +1,451 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+import java.security.*;
+
+import java.util.*;
+
+
+/**
+ * File chunk hash tree.
+ * <p>
+ * A file is divided into TREE_CHUNK_SIZE chunks, each with an MD5
+ * hash. The root hash combines the chunk hashes pairwise, level by
+ * level, so a received tree can be checked for consistency.
+ * <p>
+ * The tree for a shared file is computed once and kept in the hash
+ * tree folder until the file's size or modification time changes.
+ */
+public class HashTree implements Parameters {
+   // Hash size (bytes).
+   static final int HASH_SIZE = 16;
+
+   // File size, chunk size and count.
+   long size;
+   int  chunkSize;
+   int  chunkCount;
+
+   // Chunk hashes and root hash.
+   byte[] hashes;
+   byte[] root;
+
+   // Constructor.
+   HashTree(long size, int chunkSize, byte[] hashes)
+   {
+      this.size      = size;
+      this.chunkSize = chunkSize;
+      this.hashes    = hashes;
+      chunkCount     = hashes.length / HASH_SIZE;
+      root           = computeRoot();
+   }
+
+
+   // Get tree for file, computing and storing it if needed.
+   // Return null if tree cannot be made.
+   static HashTree getTree(String fileName)
+   {
+      File     file     = new File(fileName);
+      String   treeFile = getTreeFile(fileName);
+      HashTree tree;
+
+      if (!file.isFile())
+      {
+         return(null);
+      }
+
+      // Stored tree still current?
+      if ((tree = load(treeFile, file)) != null)
+      {
+         return(tree);
+      }
+
+      try {
+         tree = compute(fileName);
+         tree.save(fileName);
+
+         return(tree);
+      }
+      catch (IOException e) {
+         String msgString = new String("Cannot compute hash tree for " +
+                                       fileName + ": " + e.toString());
+         Log.getLog().logWarning(msgString);
+
+         return(null);
+      }
+   }
+
+
+   // Compute tree for file.
+   static HashTree compute(String fileName) throws IOException
+   {
+      long            size     = new File(fileName).length();
+      int             count    = getChunkCount(size, TREE_CHUNK_SIZE);
+      byte[]          hashes   = new byte[count * HASH_SIZE];
+      FileInputStream in       = new FileInputStream(fileName);
+      byte[]          data     = new byte[RECEIVE_BUFFER_SIZE];
+      MessageDigest   digest   = getDigest();
+      int             chunk    = 0;
+      long            position = 0;
+      int             nr;
+
+      try {
+         while ((nr = in.read(data)) > 0)
+         {
+            if ((position += nr) > size)
+            {
+               throw new IOException("File changed while hashing");
+            }
+
+            for (int i = 0; i < nr; )
+            {
+               int n = (int)Math.min(nr - i, getChunkOffset(chunk + 1, size) -
+                                     (position - nr + i));
+               digest.update(data, i, n);
+               i += n;
+
+               if ((position - nr + i) == getChunkOffset(chunk + 1, size))
+               {
+                  System.arraycopy(digest.digest(), 0, hashes,
+                                   chunk * HASH_SIZE, HASH_SIZE);
+                  chunk++;
+               }
+            }
+         }
+      }
+      finally {
+         in.close();
+      }
+
+      if (chunk != count)
+      {
+         throw new IOException("File changed while hashing");
+      }
+
+      return(new HashTree(size, TREE_CHUNK_SIZE, hashes));
+   }
+
+
+   // Store tree for file.
+   void save(String fileName)
+   {
+      File   file     = new File(fileName);
+      String treeFile = getTreeFile(fileName);
+      File   temp     = new File(treeFile + ".tmp");
+
+      try {
+         new File(HASH_TREE_FOLDER).mkdir();
+         DataOutputStream out = new DataOutputStream(Utils.makeBOS(temp.getPath()));
+         out.writeLong(file.length());
+         out.writeLong(file.lastModified());
+         out.writeInt(chunkSize);
+         out.writeInt(chunkCount);
+         out.write(hashes);
+         out.close();
+
+         new File(treeFile).delete();
+         temp.renameTo(new File(treeFile));
+      }
+      catch (IOException e) {
+         temp.delete();
+      }
+   }
+
+
+   // Load stored tree if it matches the file.
+   static HashTree load(String treeFile, File file)
+   {
+      DataInputStream in = null;
+
+      try {
+         in = new DataInputStream(Utils.makeBIS(treeFile));
+
+         if ((in.readLong() != file.length()) ||
+             (in.readLong() != file.lastModified()))
+         {
+            return(null);
+         }
+
+         int chunkSize  = in.readInt();
+         int chunkCount = in.readInt();
+
+         if ((chunkSize != TREE_CHUNK_SIZE) ||
+             (chunkCount != getChunkCount(file.length(), chunkSize)))
+         {
+            return(null);
+         }
+
+         byte[] hashes = new byte[chunkCount * HASH_SIZE];
+         in.readFully(hashes);
+
+         return(new HashTree(file.length(), chunkSize, hashes));
+      }
+      catch (IOException e) {
+         return(null);
+      }
+      finally {
+         if (in != null)
+         {
+            try {
+               in.close();
+            }
+            catch (IOException e) {
+            }
+         }
+      }
+   }
+
+
+   // Stored tree file name for file.
+   static String getTreeFile(String fileName)
+   {
+      return(HASH_TREE_FOLDER + File.separator +
+             Utils.getMD5ForString(new File(fileName).getAbsolutePath()) +
+             ".tree");
+   }
+
+
+   // Put tree to connection: a message with the sizes and root hash,
+   // followed by the chunk hashes.
+   void put(PeerConnection connection) throws IOException
+   {
+      connection.startMessage();
+      connection.putLong(size);
+      connection.putLong(chunkSize);
+      connection.putLong(chunkCount);
+      connection.putString(getRootString());
+      connection.send();
+      connection.out.write(hashes);
+      connection.out.flush();
+   }
+
+
+   // Get tree from connection.
+   // Return null if the tree is not consistent with its root hash.
+   static HashTree get(PeerConnection connection, Utils utils)
+   throws IOException
+   {
+      connection.receive(SOCKET_TIME_OUT);
+      long   size       = connection.getLong();
+      long   chunkSize  = connection.getLong();
+      long   chunkCount = connection.getLong();
+      String rootString = connection.getString();
+
+      if ((size < 0) || (size > connection.getMaxFileSize()) ||
+          (chunkSize != TREE_CHUNK_SIZE) ||
+          (chunkCount != getChunkCount(size, (int)chunkSize)))
+      {
+         throw new IOException("Invalid hash tree size=" + size +
+                               ", chunk size=" + chunkSize + ", chunks=" + chunkCount);
+      }
+
+      byte[] hashes = new byte[(int)chunkCount * HASH_SIZE];
+
+      if (!utils.readFullyFromStream(connection.in, hashes, 0, hashes.length,
+                                     SOCKET_TIME_OUT))
+      {
+         throw new IOException("Hash tree time-out");
+      }
+
+      HashTree tree = new HashTree(size, (int)chunkSize, hashes);
+
+      if (!tree.getRootString().equals(rootString))
+      {
+         return(null);
+      }
+
+      return(tree);
+   }
+
+
+   // End offset of chunks before given chunk in file of given size.
+   private static long getChunkOffset(int chunk, long size)
+   {
+      return(Math.min((long)chunk * TREE_CHUNK_SIZE, size));
+   }
+
+
+   // Number of chunks in file of given size.
+   static int getChunkCount(long size, int chunkSize)
+   {
+      return((int)((size + chunkSize - 1) / chunkSize));
+   }
+
+
+   // Get chunk offset.
+   long getChunkOffset(int chunk)
+   {
+      return((long)chunk * chunkSize);
+   }
+
+
+   // Get chunk length.
+   int getChunkLength(int chunk)
+   {
+      return((int)Math.min(chunkSize, size - getChunkOffset(chunk)));
+   }
+
+
+   // Check chunk hash.
+   boolean checkChunk(int chunk, byte[] hash)
+   {
+      for (int i = 0; i < HASH_SIZE; i++)
+      {
+         if (hashes[(chunk * HASH_SIZE) + i] != hash[i])
+         {
+            return(false);
+         }
+      }
+
+      return(true);
+   }
+
+
+   // Get root hash string.
+   String getRootString()
+   {
+      return(HashEngine.toHex(root));
+   }
+
+
+   // Get chunk digest.
+   static MessageDigest getDigest()
+   {
+      return(HashEngine.getEngine(MD5_HASH).getDigest());
+   }
+
+
+   // Verify file data in range of chunks covering from and to offsets.
+   // Return list of chunks that do not match.
+   LinkedList verifyFile(String fileName, long from, long to)
+   throws IOException
+   {
+      int             first = (int)(from / chunkSize);
+      Verifier        verifier = new Verifier(first);
+      FileInputStream in    = new FileInputStream(fileName);
+      byte[]          data  = new byte[RECEIVE_BUFFER_SIZE];
+      long            position = getChunkOffset(first);
+      int             nr;
+
+      try {
+         if (in.skip(position) != position)
+         {
+            throw new IOException("Cannot skip to offset " + position);
+         }
+
+         while ((position < to) &&
+                ((nr = in.read(data, 0,
+                               (int)Math.min(data.length, to - position))) > 0))
+         {
+            verifier.update(data, 0, nr);
+            position += nr;
+         }
+      }
+      finally {
+         in.close();
+      }
+
+      return(verifier.badChunks);
+   }
+
+
+   // Compute root hash from chunk hashes.
+   private byte[] computeRoot()
+   {
+      byte[]        level  = hashes;
+      int           count  = chunkCount;
+      MessageDigest digest = getDigest();
+
+      if (count == 0)
+      {
+         return(digest.digest());
+      }
+
+      while (count > 1)
+      {
+         int    next     = (count + 1) / 2;
+         byte[] parents  = new byte[next * HASH_SIZE];
+
+         for (int i = 0; i < next; i++)
+         {
+            if (((2 * i) + 1) < count)
+            {
+               digest.update(level, 2 * i * HASH_SIZE, 2 * HASH_SIZE);
+               System.arraycopy(digest.digest(), 0, parents, i * HASH_SIZE,
+                                HASH_SIZE);
+            }
+            else
+            {
+               System.arraycopy(level, 2 * i * HASH_SIZE, parents,
+                                i * HASH_SIZE, HASH_SIZE);
+            }
+         }
+
+         level = parents;
+         count = next;
+      }
+
+      byte[] result = new byte[HASH_SIZE];
+      System.arraycopy(level, 0, result, 0, HASH_SIZE);
+
+      return(result);
+   }
+
+
+   // Verifier of file data arriving in order from the start of a chunk.
+   class Verifier {
+      MessageDigest digest;
+      int           chunk;
+      int           position;
+      LinkedList    badChunks;
+
+      Verifier(int chunk)
+      {
+         this.chunk = chunk;
+         digest     = getDigest();
+         position   = 0;
+         badChunks  = new LinkedList();
+      }
+
+
+      // Hash data, checking each chunk as it is completed.
+      void update(byte[] data, int offset, int length)
+      {
+         while ((length > 0) && (chunk < chunkCount))
+         {
+            int n = Math.min(length, getChunkLength(chunk) - position);
+            digest.update(data, offset, n);
+            position += n;
+            offset   += n;
+            length   -= n;
+
+            if (position == getChunkLength(chunk))
+            {
+               if (!checkChunk(chunk, digest.digest()))
+               {
+                  badChunks.add(Integer.valueOf(chunk));
+               }
+
+               chunk++;
+               position = 0;
+            }
+         }
+      }
+
+
+      // No bad chunks so far?
+      boolean isValid()
+      {
+         return(badChunks.size() == 0);
+      }
+   }
+}
@@ -0,0 +1,116 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.util.*;
+
+
+/**
+ * File location cache.
+ * <p>
+ * Keeps where searches passing through this peer found files, keyed
+ * by the name, type and code searched for, so a repeated search can
+ * be answered without flooding the network again. Locations expire
+ * after LOCATION_CACHE_TIME, the least recently used are dropped when
+ * the cache is full, and a location is dropped as soon as a download
+ * from it fails.
+ */
+public class LocationCache implements Parameters {
+   // Locations by search key, least recently used first.
+   LinkedHashMap locations;
+
+   // Constructor.
+   public LocationCache()
+   {
+      locations = new LocationMap();
+   }
+
+
+   // Get unexpired location of file, or null if none.
+   synchronized Location get(String name, String type, String code)
+   {
+      String   key      = getKey(name, type, code);
+      Location location = (Location)locations.get(key);
+
+      if ((location != null) &&
+          ((System.currentTimeMillis() - location.time) > LOCATION_CACHE_TIME))
+      {
+         locations.remove(key);
+         location = null;
+      }
+
+      return(location);
+   }
+
+
+   // Save location found by search.
+   synchronized void put(String name, String type, String code,
+                         String targetName, String targetPeer, long targetPort,
+                         long targetSize)
+   {
+      locations.put(getKey(name, type, code),
+                    new Location(targetName, targetPeer, targetPort, targetSize));
+   }
+
+
+   // Drop location of file if it is at given peer.
+   synchronized void remove(String name, String type, String code,
+                            String peer, long port)
+   {
+      String   key      = getKey(name, type, code);
+      Location location = (Location)locations.get(key);
+
+      if ((location != null) && location.peer.equals(peer) &&
+          (location.port == port))
+      {
+         locations.remove(key);
+      }
+   }
+
+
+   // Location key.
+   private static String getKey(String name, String type, String code)
+   {
+      return(type + ":" + code + ":" + name);
+   }
+
+
+   // File location.
+   static class Location {
+      String name;
+      String peer;
+      long   port;
+      long   size;
+      long   time;
+
+      Location(String name, String peer, long port, long size)
+      {
+         this.name = name;
+         this.peer = peer;
+         this.port = port;
+         this.size = size;
+         time      = System.currentTimeMillis();
+      }
+   }
+
+   // Location table in access order, bounded in size.
+   class LocationMap extends LinkedHashMap {
+      LocationMap()
+      {
+         super(16, 0.75f, true);
+      }
+
+
+      protected boolean removeEldestEntry(Map.Entry eldest)
+      {
+         return(size() > LOCATION_CACHE_SIZE);
+      }
+   }
+}
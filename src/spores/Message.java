@@ -0,0 +1,350 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+
+/**
+ * Protocol message codec.
+ * <p>
+ * A framed message is a 4-byte length followed by typed fields: a tag
+ * byte, then a byte, an 8-byte long, or a 2-byte length and UTF-8
+ * characters. It is written and read with one bulk transfer.
+ * <p>
+ * For peers without framing, a message is encoded as text: request
+ * header fields as lines, other fields as a byte, a 4-byte long or a
+ * line, as the original protocol sends them.
+ */
+public class Message implements Parameters {
+   // Encodings.
+   static final int FRAMED_MESSAGE = 0;
+   static final int LINE_MESSAGE   = 1;
+   static final int TEXT_MESSAGE   = 2;
+
+   // Field tags.
+   static final byte BYTE_FIELD   = 1;
+   static final byte LONG_FIELD   = 2;
+   static final byte STRING_FIELD = 3;
+
+   // Encoding.
+   int encoding;
+
+   // Message data, size and read position.
+   byte[] data;
+   int    size;
+   int    position;
+
+   // Constructor.
+   public Message()
+   {
+      data = new byte[BLOCK_SIZE];
+      clear(FRAMED_MESSAGE);
+   }
+
+
+   // Clear message for given encoding.
+   void clear(int encoding)
+   {
+      this.encoding = encoding;
+
+      if (encoding == FRAMED_MESSAGE)
+      {
+         size = 4;
+      }
+      else
+      {
+         size = 0;
+      }
+
+      position = size;
+   }
+
+
+   // Load message data, such as a request header read by the selector.
+   void load(byte[] buffer, int offset, int length, int encoding)
+   {
+      this.encoding = encoding;
+      ensure(length);
+      System.arraycopy(buffer, offset, data, 0, length);
+      size = length;
+
+      if (encoding == FRAMED_MESSAGE)
+      {
+         position = 4;
+      }
+      else
+      {
+         position = 0;
+      }
+   }
+
+
+   // Put a byte field.
+   void putByte(byte value)
+   {
+      switch (encoding)
+      {
+      case FRAMED_MESSAGE:
+         ensure(size + 2);
+         data[size++] = BYTE_FIELD;
+         data[size++] = value;
+         break;
+
+      case LINE_MESSAGE:
+         putLine(Integer.toString(value));
+         break;
+
+      default:
+         ensure(size + 1);
+         data[size++] = value;
+         break;
+      }
+   }
+
+
+   // Put a long field.
+   void putLong(long value)
+   {
+      switch (encoding)
+      {
+      case FRAMED_MESSAGE:
+         ensure(size + 9);
+         data[size++] = LONG_FIELD;
+         Utils.putLong(value, data, size, 8);
+         size += 8;
+         break;
+
+      case LINE_MESSAGE:
+         putLine(Long.toString(value));
+         break;
+
+      default:
+         ensure(size + 4);
+         Utils.putLong(value, data, size, 4);
+         size += 4;
+         break;
+      }
+   }
+
+
+   // Put a string field.
+   void putString(String value)
+   {
+      if (encoding == FRAMED_MESSAGE)
+      {
+         byte[] chars = getBytes(value);
+         ensure(size + 3 + chars.length);
+         data[size++] = STRING_FIELD;
+         data[size++] = (byte)(chars.length >> 8);
+         data[size++] = (byte)chars.length;
+         System.arraycopy(chars, 0, data, size, chars.length);
+         size += chars.length;
+      }
+      else
+      {
+         putLine(value);
+      }
+   }
+
+
+   // More framed fields to get? Line messages are not checked.
+   boolean hasField()
+   {
+      return((encoding == FRAMED_MESSAGE) && (position < size));
+   }
+
+
+   // Get a byte field.
+   byte getByte() throws IOException
+   {
+      if (encoding == LINE_MESSAGE)
+      {
+         return(Byte.parseByte(getLine()));
+      }
+
+      check(BYTE_FIELD, 1);
+
+      return(data[position++]);
+   }
+
+
+   // Get a long field.
+   // Lines that are not numbers throw NumberFormatException.
+   long getLong() throws IOException
+   {
+      if (encoding == LINE_MESSAGE)
+      {
+         return(Long.parseLong(getLine()));
+      }
+
+      check(LONG_FIELD, 8);
+      long value = Utils.getLong(data, position, 8);
+      position += 8;
+
+      return(value);
+   }
+
+
+   // Get a string field.
+   String getString() throws IOException
+   {
+      if (encoding == LINE_MESSAGE)
+      {
+         return(getLine());
+      }
+
+      check(STRING_FIELD, 2);
+      int length = ((data[position] & 0xff) << 8) | (data[position + 1] & 0xff);
+      position += 2;
+
+      if ((position + length) > size)
+      {
+         throw new IOException("Invalid message string length=" + length);
+      }
+
+      String value = new String(data, position, length, "UTF-8");
+      position += length;
+
+      return(value);
+   }
+
+
+   // Write message.
+   void write(DataOutputStream out) throws IOException
+   {
+      finish();
+      out.write(data, 0, size);
+      out.flush();
+   }
+
+
+   // Set frame length before sending.
+   void finish()
+   {
+      if (encoding == FRAMED_MESSAGE)
+      {
+         Utils.putLong(size - 4, data, 0, 4);
+      }
+   }
+
+
+   // Read framed message from stream.
+   // Time-out and throw exception if not received in time.
+   void read(Utils utils, DataInputStream in, int timer) throws IOException
+   {
+      int length;
+
+      encoding = FRAMED_MESSAGE;
+
+      if (!utils.readFullyFromStream(in, data, 0, 4, timer))
+      {
+         throw new IOException("Message time-out");
+      }
+
+      if (((length = getFrameLength(data, 0)) < 0) ||
+          (length > MAX_MESSAGE_SIZE))
+      {
+         throw new IOException("Invalid message length=" + length);
+      }
+
+      ensure(length + 4);
+
+      if (!utils.readFullyFromStream(in, data, 4, length, SOCKET_TIME_OUT))
+      {
+         throw new IOException("Message time-out");
+      }
+
+      size     = length + 4;
+      position = 4;
+   }
+
+
+   // Get frame length from first 4 bytes of a frame.
+   static int getFrameLength(byte[] buffer, int offset)
+   {
+      return((int)Utils.getLong(buffer, offset, 4));
+   }
+
+
+   // Check next field tag and size.
+   private void check(byte tag, int length) throws IOException
+   {
+      if ((position + 1 + length) > size)
+      {
+         throw new IOException("Message too short");
+      }
+
+      if (data[position] != tag)
+      {
+         throw new IOException("Invalid message field " + data[position] +
+                               ", expecting " + tag);
+      }
+
+      position++;
+   }
+
+
+   // Put line.
+   private void putLine(String line)
+   {
+      byte[] chars = line.getBytes();
+      ensure(size + chars.length + 1);
+      System.arraycopy(chars, 0, data, size, chars.length);
+      size        += chars.length;
+      data[size++] = (byte)'\n';
+   }
+
+
+   // Get line.
+   private String getLine() throws IOException
+   {
+      int start = position;
+
+      while ((position < size) && (data[position] != (byte)'\n'))
+      {
+         position++;
+      }
+
+      if (position == size)
+      {
+         throw new IOException("Message too short");
+      }
+
+      String line = new String(data, start, position - start).trim();
+      position++;
+
+      return(line);
+   }
+
+
+   // Encode string.
+   private static byte[] getBytes(String value)
+   {
+      try {
+         return(value.getBytes("UTF-8"));
+      }
+      catch (UnsupportedEncodingException e) {
+         return(value.getBytes());
+      }
+   }
+
+
+   // Ensure data capacity.
+   private void ensure(int capacity)
+   {
+      if (capacity > data.length)
+      {
+         byte[] newData = new byte[Math.max(capacity, data.length * 2)];
+         System.arraycopy(data, 0, newData, 0, size);
+         data = newData;
+      }
+   }
+}
@@ -34,6 +34,9 @@ public class P2P extends Thread implements Parameters {
    PeerList connectedPeers;
    PeerList pendingPeers;
 
+   // Content filters of connected peers by address.
+   Hashtable peerFilters;
+
    // Constructor: cache peer addresses.
    public P2P(Controls controls, int port) throws Exception
    {
@@ -52,6 +55,7 @@ public class P2P extends Thread implements Parameters {
       // Create peer lists.
       connectedPeers = new PeerList();
       pendingPeers   = new PeerList();
+      peerFilters    = new Hashtable();
 
       // Create web cache lists.
       WebCacheList cacheList              = new WebCacheList();
@@ -663,6 +667,7 @@ public class P2P extends Thread implements Parameters {
                   {
                      connectedPeers.addPeer(peerAddress);
                      refreshConnections();
+                     requestFilter(peerAddress);
                   }
                }
             }
@@ -689,8 +694,15 @@ public class P2P extends Thread implements Parameters {
                {
                   // Remove peer.
                   connectedPeers.remove(peerAddress);
+                  peerFilters.remove(peerAddress.host + ":" +
+                                     peerAddress.port);
                   refreshConnections();
                }
+               else
+               {
+                  // Bring its content filter up to date.
+                  requestFilter(peerAddress);
+               }
             }
          }
 
@@ -708,30 +720,29 @@ public class P2P extends Thread implements Parameters {
     */
    PeerList requestPeers(PeerAddress peerAddress)
    {
-      Socket   socket;
-      long     numPeers;
-      PeerList peerList = new PeerList();
+      PeerConnection connection;
+      long           numPeers;
+      int            i;
+      PeerList       peerList = new PeerList();
 
-      // Create connection to peer.
-      socket = null;
+      // Get connection to peer.
+      connection = null;
 
       try {
-         socket = utils.createSocket(peerAddress.host, peerAddress.port);
+         connection = utils.openConnection(peerAddress.host, peerAddress.port,
+                                           localPort);
 
          // Request peers.
-         PrintWriter out = utils.getPrintWriter(socket);
-         utils.printToStream(out,
-                             Double.toString(VERSION) + "\n" + Integer.toString(localPort) +
-                             "\n" + PEER_REQUEST);
+         connection.startRequest(localPort, PEER_REQUEST);
+         connection.send();
 
          // Get peer list.
-         DataInputStream in = utils.getDataInputStream(socket);
-         numPeers = utils.readLongFromStream(in);
+         connection.receive(SOCKET_TIME_OUT);
+         numPeers = connection.getLong();
 
-         for (int i = 0; (i < numPeers) && (i < MAX_TRANSMITTED_PEERS);
-              i++)
+         for (i = 0; (i < numPeers) && (i < MAX_TRANSMITTED_PEERS); i++)
          {
-            String address = utils.readLineFromStream(in);
+            String address = connection.getString();
 
             if (address == null)
             {
@@ -743,6 +754,13 @@ public class P2P extends Thread implements Parameters {
                peerList.addPeer(address);
             }
          }
+
+         // Reuse connection only if the whole list was read.
+         if (connection.framed || (i == numPeers))
+         {
+            utils.releaseConnection(connection);
+            connection = null;
+         }
       }
       catch (Exception e) {
          String msgString = new String("Error requesting peers from " +
@@ -751,13 +769,9 @@ public class P2P extends Thread implements Parameters {
          Log.getLog().logWarning(msgString);
       }
       finally {
-         try {
-            if (socket != null)
-            {
-               utils.closeSocket(socket);
-            }
-         }
-         catch (Exception e) {
+         if (connection != null)
+         {
+            utils.closeConnection(connection);
          }
       }
 
@@ -770,24 +784,25 @@ public class P2P extends Thread implements Parameters {
     */
    boolean confirmPeer(PeerAddress peerAddress)
    {
-      Socket socket;
-      byte   response = NEGATIVE_RESPONSE;
+      PeerConnection connection;
+      byte           response = NEGATIVE_RESPONSE;
 
-      // Create connection to peer.
-      socket = null;
+      // Get connection to peer.
+      connection = null;
 
       try {
-         socket = utils.createSocket(peerAddress.host, peerAddress.port);
+         connection = utils.openConnection(peerAddress.host, peerAddress.port,
+                                           localPort);
 
          // Send confirmation request.
-         PrintWriter out = utils.getPrintWriter(socket);
-         utils.printToStream(out,
-                             Double.toString(VERSION) + "\n" + Integer.toString(localPort) +
-                             "\n" + CONFIRMATION_REQUEST);
+         connection.startRequest(localPort, CONFIRMATION_REQUEST);
+         connection.send();
 
          // Get reply.
-         DataInputStream in = utils.getDataInputStream(socket);
-         response = utils.readByteFromStream(in);
+         connection.receive(SOCKET_TIME_OUT);
+         response = connection.getByte();
+         utils.releaseConnection(connection);
+         connection = null;
       }
       catch (Exception e) {
          String msgString = new String("Error confirming peer " +
@@ -796,13 +811,9 @@ public class P2P extends Thread implements Parameters {
          Log.getLog().logWarning(msgString);
       }
       finally {
-         try {
-            if (socket != null)
-            {
-               utils.closeSocket(socket);
-            }
-         }
-         catch (Exception e) {
+         if (connection != null)
+         {
+            utils.closeConnection(connection);
          }
       }
 
@@ -817,6 +828,159 @@ public class P2P extends Thread implements Parameters {
    }
 
 
+   /**
+    * Request content filter of peer, or the changes to the one held.
+    */
+   void requestFilter(PeerAddress peerAddress)
+   {
+      PeerConnection connection;
+      String         key        = peerAddress.host + ":" + peerAddress.port;
+      PeerFilter     peerFilter = (PeerFilter)peerFilters.get(key);
+
+      // Get connection to peer.
+      connection = null;
+
+      try {
+         connection = utils.openConnection(peerAddress.host, peerAddress.port,
+                                           localPort);
+
+         // Only framed connections carry filters.
+         if (!connection.framed)
+         {
+            utils.releaseConnection(connection);
+            connection = null;
+
+            return;
+         }
+
+         // Send filter request with version held.
+         connection.startRequest(localPort, FILTER_REQUEST);
+         connection.putLong((peerFilter == null) ? -1 : peerFilter.version);
+         connection.send();
+
+         // Get reply.
+         connection.receive(SOCKET_TIME_OUT);
+
+         if (connection.getByte() != POSITIVE_RESPONSE)
+         {
+            peerFilters.remove(key);
+            utils.releaseConnection(connection);
+            connection = null;
+
+            return;
+         }
+
+         long   version = connection.getLong();
+         String engine  = connection.getString();
+         long   bits    = connection.getLong();
+         long   hashes  = connection.getLong();
+         long   changes = connection.getLong();
+
+         if ((bits <= 0) || (bits > FILTER_BITS) || ((bits % 8) != 0) ||
+             (hashes <= 0) || (hashes > FILTER_HASHES) ||
+             (changes < -1) ||
+             (changes > (MAX_FILTER_CHANGES * 2 * FILTER_HASHES)))
+         {
+            throw new IOException("Invalid content filter bits=" + bits +
+                                  ", hashes=" + hashes + ", changes=" + changes);
+         }
+
+         byte[] data = new byte[(changes == -1) ? (int)bits / 8 :
+                                (int)changes * 4];
+
+         if (!utils.readFullyFromStream(connection.in, data, 0, data.length,
+                                        SOCKET_TIME_OUT))
+         {
+            throw new IOException("Content filter time-out");
+         }
+
+         utils.releaseConnection(connection);
+         connection = null;
+
+         if (changes == -1)
+         {
+            // Whole filter.
+            peerFilters.put(key, new PeerFilter(version, engine,
+                                                new BloomFilter(data, (int)hashes)));
+         }
+         else if ((peerFilter != null) &&
+                  (peerFilter.filter.size == bits) &&
+                  (peerFilter.filter.hashes == hashes))
+         {
+            // Bits set since version held.
+            int[] positions = new int[(int)changes];
+
+            for (int i = 0; i < positions.length; i++)
+            {
+               positions[i] = (((data[i * 4] & 0xff) << 24) |
+                               ((data[(i * 4) + 1] & 0xff) << 16) |
+                               ((data[(i * 4) + 2] & 0xff) << 8) |
+                               (data[(i * 4) + 3] & 0xff));
+
+               if ((positions[i] < 0) || (positions[i] >= bits))
+               {
+                  throw new IOException("Invalid content filter bit " +
+                                        positions[i]);
+               }
+            }
+
+            peerFilter.filter.set(positions);
+            peerFilter.version = version;
+         }
+      }
+      catch (Exception e) {
+         peerFilters.remove(key);
+
+         String msgString = new String("Error requesting content filter from " +
+                                       peerAddress.host + ":" + peerAddress.port + ": " +
+                                       e.toString());
+         Log.getLog().logWarning(msgString);
+      }
+      finally {
+         if (connection != null)
+         {
+            utils.closeConnection(connection);
+         }
+      }
+   }
+
+
+   // Get peers to forward a search to. On the last hop, peers whose
+   // content filters show they do not have the file are left out;
+   // peers without filters are kept.
+   PeerList getSearchPeers(PeerList peerList, String file, String type,
+                           String code, long depth)
+   {
+      if (depth != 1)
+      {
+         return(peerList);
+      }
+
+      PeerList searchPeers = new PeerList();
+      byte     fileType    = FILE;
+
+      if (type.equals("folder"))
+      {
+         fileType = FOLDER;
+      }
+
+      for (int i = 0; i < peerList.size(); i++)
+      {
+         PeerAddress peerAddress = (PeerAddress)peerList.get(i);
+         PeerFilter  peerFilter  = (PeerFilter)peerFilters.get(
+            peerAddress.host + ":" + peerAddress.port);
+
+         if ((peerFilter == null) ||
+             peerFilter.mightHave(file, fileType, code))
+         {
+            searchPeers.addPeer(peerAddress);
+         }
+      }
+
+      return(searchPeers);
+   }
+
+
    // Request peer addresses from web caches.
    void requestWebCaches()
    {
@@ -1039,6 +1203,40 @@ public class P2P extends Thread implements Parameters {
       }
    }
 
+   // Content filter of peer.
+   class PeerFilter {
+      long        version;
+      String      engine;
+      BloomFilter filter;
+
+      PeerFilter(long version, String engine, BloomFilter filter)
+      {
+         this.version = version;
+         this.engine  = engine;
+         this.filter  = filter;
+      }
+
+
+      // May peer have file? A name of "*" searches on code, which is
+      // only checked if made by the peer's hash engine.
+      boolean mightHave(String name, byte type, String code)
+      {
+         if (!name.equals("*"))
+         {
+            return(filter.mightContain(BloomFilter.getNameKey(type, name)));
+         }
+
+         HashEngine hashEngine = HashEngine.getEngineForCode(code);
+
+         if ((hashEngine == null) || !hashEngine.name.equals(engine))
+         {
+            return(true);
+         }
+
+         return(filter.mightContain(BloomFilter.getCodeKey(type, code)));
+      }
+   }
+
    // Peer lists.
    class PeerList extends LinkedList {
       PeerList()
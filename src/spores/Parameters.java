@@ -70,6 +70,12 @@ public interface Parameters {
     */
    static final int DEFAULT_MAX_SHARED_SIZE = 10000;
 
+   /**
+    * Shared file totals reconciliation frequency (ms): the running
+    * totals are recounted from the shared folder this often.
+    */
+   static final int SHARED_TOTALS_FREQ = 60000;
+
    /**
     * Transfer file folder.
     */
@@ -80,6 +86,104 @@ public interface Parameters {
     */
    static final int MAX_TRANSFER_FILE_SIZE = 500000000;
 
+   /**
+    * Maximum transferred file size with a framed peer (bytes).
+    * Framed messages carry sizes in 8 bytes instead of 4.
+    */
+   static final long MAX_FRAMED_TRANSFER_FILE_SIZE = 1099511627776L;
+
+   /**
+    * Partial download resume marker file suffix.
+    */
+   static final String RESUME_SUFFIX = ".resume";
+
+   /**
+    * Bytes of a partial download received again and verified when
+    * resuming.
+    */
+   static final int RESUME_OVERLAP = 65536;
+
+   /**
+    * Hash tree chunk size (bytes).
+    */
+   static final int TREE_CHUNK_SIZE = 1048576;
+
+   /**
+    * Hash tree folder.
+    */
+   static final String HASH_TREE_FOLDER = "hash-trees";
+
+   /**
+    * Uniqueness code cache file.
+    */
+   static final String HASH_CACHE_FILE = "hash-cache";
+
+   /**
+    * Folder scanning threads: folder walks wait mostly on the disks,
+    * so this can exceed the number of processors.
+    */
+   static final int SCAN_THREADS = 8;
+
+   /**
+    * Folder members visited per scanning task.
+    */
+   static final int SCAN_BATCH_SIZE = 4;
+
+   /**
+    * Folder watch settling delay (ms): changes are reported once no
+    * more arrive for this long.
+    */
+   static final int WATCH_DELAY = 500;
+
+   /**
+    * Hash engine names: MD5 of the start of a file, as codes have
+    * always been made, and SHA-256 of the whole file.
+    */
+   static final String MD5_HASH    = "md5";
+   static final String SHA256_HASH = "sha256";
+
+   /**
+    * Hash engine property: names the engine making local uniqueness
+    * codes.
+    */
+   static final String HASH_PROPERTY = "Spores.Hash";
+
+   /**
+    * Content filter size (bits) and hashes per key: a peer's shared
+    * names and codes are summarized in a Bloom filter of this size for
+    * its neighbours.
+    */
+   static final int FILTER_BITS   = 65536;
+   static final int FILTER_HASHES = 4;
+
+   /**
+    * Content filter changes kept to update neighbours with, rather
+    * than sending them the whole filter.
+    */
+   static final int MAX_FILTER_CHANGES = 64;
+
+   /**
+    * Files removed from the shared folder before the content filter is
+    * rebuilt: until then their entries give false matches.
+    */
+   static final int MAX_FILTER_REMOVALS = 16;
+
+   /**
+    * Attempts to fetch a chunk that fails its hash check.
+    */
+   static final int MAX_CHUNK_RETRIES = 3;
+
+   /**
+    * Multi-source download chunk size (bytes): a multiple of the
+    * hash tree chunk size.
+    */
+   static final int SWARM_CHUNK_SIZE = 4 * TREE_CHUNK_SIZE;
+
+   /**
+    * Maximum peers to download a file from at once.
+    */
+   static final int MAX_SWARM_PEERS = 8;
+
    /**
     * Maximum line size.
     */
@@ -90,6 +194,26 @@ public interface Parameters {
     */
    static final int BLOCK_SIZE = 4096;
 
+   /**
+    * File channel transfer chunk size (bytes).
+    */
+   static final int TRANSFER_CHUNK_SIZE = 1048576;
+
+   /**
+    * File receive buffer size (bytes).
+    */
+   static final int RECEIVE_BUFFER_SIZE = 65536;
+
+   /**
+    * Maximum pooled receive buffers.
+    */
+   static final int MAX_RECEIVE_BUFFERS = 4;
+
+   /**
+    * Transfer progress display update frequency (ms).
+    */
+   static final int PROGRESS_FREQ = 100;
+
    /**
     * Peer address file.
     */
@@ -135,6 +259,134 @@ public interface Parameters {
     */
    static final int SPORES_PORT = 8944;
 
+   // Server modes.
+   static final int BLOCKING_SERVER = 0;
+   static final int SELECTOR_SERVER = 1;
+
+   /**
+    * Server mode system property ("blocking" or "selector").
+    */
+   static final String SERVER_MODE_PROPERTY = "Spores.Server";
+
+   /**
+    * Default server mode.
+    */
+   static final int DEFAULT_SERVER_MODE = BLOCKING_SERVER;
+
+   /**
+    * Maximum number of server worker threads.
+    */
+   static final int MAX_SERVER_WORKERS = 20;
+
+   /**
+    * Maximum number of server requests queued for a worker.
+    */
+   static final int MAX_SERVER_QUEUE = 100;
+
+   // Search modes.
+   static final int FLOOD_SEARCH = 0;
+   static final int RING_SEARCH  = 1;
+   static final int WALK_SEARCH  = 2;
+
+   /**
+    * Search mode system property ("flood", "ring" or "walk").
+    */
+   static final String SEARCH_MODE_PROPERTY = "Spores.Search";
+
+   /**
+    * Default search mode.
+    */
+   static final int DEFAULT_SEARCH_MODE = FLOOD_SEARCH;
+
+   /**
+    * Time a relayed ring search waits for hits, per hop of its depth
+    * (ms).
+    */
+   static final int RING_HOP_TIME = 500;
+
+   /**
+    * Random walk search: walkers sent out, the most hops each walks,
+    * and how often in hops a walker checks back with the peer that
+    * started the search.
+    */
+   static final int WALKERS         = 4;
+   static final int WALK_TTL        = 128;
+   static final int WALK_CHECK_HOPS = 4;
+
+   /**
+    * Search relay system property: "true" to search by asynchronous
+    * queries, with hits routed back along the query path.
+    */
+   static final String RELAY_PROPERTY = "Spores.Relay";
+
+   /**
+    * Threads sending relayed queries and hits.
+    */
+   static final int RELAY_THREADS = 8;
+
+   /**
+    * Threads searching unframed peers for the search relay, and the
+    * most searches queued for them.
+    */
+   static final int RELAY_SEARCH_THREADS = 4;
+   static final int MAX_RELAY_SEARCHES   = 100;
+
+   /**
+    * Maximum searches routed at once.
+    */
+   static final int MAX_RELAY_ROUTES = 10000;
+
+   /**
+    * Time an asynchronous search waits for hits (ms).
+    */
+   static final int RELAY_SEARCH_TIME = 10000;
+
+   /**
+    * Time an asynchronous search waits for more hits once it has the
+    * copies searched for, if the caller wants more (ms).
+    */
+   static final int RELAY_HIT_WAIT = 1000;
+
+   /**
+    * Maximum request header size (bytes).
+    */
+   static final int MAX_HEADER_SIZE = 10 * MAX_LINE_SIZE;
+
+   /**
+    * Selector wake-up frequency (ms).
+    */
+   static final int SELECT_FREQ = 1000;
+
+   /**
+    * Keep-alive request option: connection is reused for further requests.
+    */
+   static final String KEEP_ALIVE = "keep-alive";
+
+   /**
+    * Keep-alive time-out waiting for next request (ms).
+    */
+   static final int KEEP_ALIVE_TIME_OUT = 60000;
+
+   /**
+    * Pooled connection idle time-out (ms).
+    */
+   static final int CONNECTION_IDLE_TIME = 30000;
+
+   /**
+    * Maximum number of idle pooled connections per peer.
+    */
+   static final int MAX_IDLE_CONNECTIONS = 2;
+
+   /**
+    * Framed request option: connection switches to binary framed messages.
+    */
+   static final String FRAMED = "framed";
+
+   /**
+    * Maximum framed message size (bytes).
+    */
+   static final int MAX_MESSAGE_SIZE = MAX_HEADER_SIZE;
+
    /**
     * Spores gnutella vendor code.
     */
@@ -155,6 +407,41 @@ public interface Parameters {
     */
    static final String DOWNLOAD_REQUEST = "DOWNLOAD_REQ";
 
+   /**
+    * Request code for download of file from an offset.
+    */
+   static final String RANGE_REQUEST = "RANGE_REQ";
+
+   /**
+    * Request code for file hash tree.
+    */
+   static final String TREE_REQUEST = "TREE_REQ";
+
+   /**
+    * Request code for content filter.
+    */
+   static final String FILTER_REQUEST = "FILTER_REQ";
+
+   /**
+    * Request code for asynchronous search query.
+    */
+   static final String QUERY_REQUEST = "QUERY_REQ";
+
+   /**
+    * Request code for asynchronous search hit.
+    */
+   static final String HIT_REQUEST = "HIT_REQ";
+
+   /**
+    * Request code for random walk search.
+    */
+   static final String WALK_REQUEST = "WALK_REQ";
+
+   /**
+    * Request code for checking a search is still running.
+    */
+   static final String CHECK_REQUEST = "CHECK_REQ";
+
    /**
     * Request code for upload.
     */
@@ -175,6 +462,12 @@ public interface Parameters {
     */
    static final byte NEGATIVE_RESPONSE = (byte)0;
 
+   /**
+    * Framed response: reply to a confirmation request with the
+    * framed option from a server that accepts framed messages.
+    */
+   static final byte FRAMED_RESPONSE = (byte)2;
+
    /**
     * Transfer thread delay (ms).
     */
@@ -195,6 +488,32 @@ public interface Parameters {
     */
    static final int SEARCH_TIME_OUT = 60000;
 
+   /**
+    * Search time kept by each hop to relay its answer back (ms): a
+    * peer is given the search time left, less this.
+    */
+   static final int SEARCH_HOP_TIME = 1000;
+
+   /**
+    * Search IDs kept to suppress duplicate searches: how long (ms),
+    * the number of time slots they are expired by, and the most kept.
+    */
+   static final int SEARCH_ID_TIME  = SEARCH_TIME_OUT;
+   static final int SEARCH_ID_SLOTS = 60;
+   static final int MAX_SEARCH_IDS  = 100000;
+
+   /**
+    * File locations kept from searches, and how long they are used
+    * to answer searches (ms).
+    */
+   static final int  LOCATION_CACHE_SIZE = 1000;
+   static final long LOCATION_CACHE_TIME = 600000;
+
+   /**
+    * Hash tree request time-out (ms): allows the tree to be computed.
+    */
+   static final int TREE_TIME_OUT = SEARCH_TIME_OUT;
+
    /**
     * Maximum upload attempts.
     */
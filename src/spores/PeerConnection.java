@@ -0,0 +1,363 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+import java.net.*;
+
+
+/**
+ * Connection to a peer.
+ * <p>
+ * Requests and responses are sent as messages of typed fields, framed
+ * if the peer server accepted the framed option when the connection
+ * was opened, otherwise in the original text form.
+ */
+public class PeerConnection implements Parameters {
+   // Utilities.
+   Utils utils;
+
+   // Peer address.
+   String host;
+   int    port;
+
+   // Socket and streams.
+   Socket           socket;
+   DataInputStream  in;
+   DataOutputStream out;
+
+   // Framed messages negotiated?
+   boolean framed;
+
+   // Outgoing and incoming messages.
+   Message output;
+   Message input;
+
+   // Incoming message buffered? Otherwise text fields are read
+   // from the stream as they are requested.
+   boolean buffered;
+
+   // Number of requests sent.
+   int requests;
+
+   // Time of last release to pool.
+   long lastUsed;
+
+   // Constructor for connection to peer server.
+   PeerConnection(Utils utils, String host, int port) throws IOException
+   {
+      this(utils, utils.createSocket(host, port));
+      this.host = host;
+      this.port = port;
+   }
+
+
+   // Constructor for accepted connection.
+   PeerConnection(Utils utils, Socket socket) throws IOException
+   {
+      this.utils  = utils;
+      this.socket = socket;
+      host        = utils.getRemoteAddress(socket);
+      port        = SPORES_PORT;
+
+      try {
+         in  = utils.getDataInputStream(socket);
+         out = utils.getDataOutputStream(socket);
+      }
+      catch (IOException e) {
+         utils.closeSocket(socket);
+         throw e;
+      }
+
+      framed   = false;
+      output   = new Message();
+      input    = new Message();
+      buffered = false;
+      requests = 0;
+      lastUsed = System.currentTimeMillis();
+   }
+
+
+   // Ask peer server for framed messages.
+   // Return false if the peer server only accepts text messages.
+   boolean negotiate(int localPort) throws IOException
+   {
+      requests++;
+      output.clear(Message.LINE_MESSAGE);
+      output.putString(Double.toString(VERSION) + " " + KEEP_ALIVE + " " +
+                       FRAMED);
+      output.putLong(localPort);
+      output.putString(CONFIRMATION_REQUEST);
+      output.write(out);
+      framed = (utils.readByteFromStream(in) == FRAMED_RESPONSE);
+
+      return(framed);
+   }
+
+
+   // Start request message.
+   void startRequest(int localPort, String request)
+   {
+      requests++;
+
+      if (framed)
+      {
+         output.clear(Message.FRAMED_MESSAGE);
+      }
+      else
+      {
+         output.clear(Message.LINE_MESSAGE);
+         output.putString(Double.toString(VERSION) + " " + KEEP_ALIVE);
+      }
+
+      output.putLong(localPort);
+      output.putString(request);
+   }
+
+
+   // Start response or transfer message.
+   void startMessage()
+   {
+      if (framed)
+      {
+         output.clear(Message.FRAMED_MESSAGE);
+      }
+      else
+      {
+         output.clear(Message.TEXT_MESSAGE);
+      }
+   }
+
+
+   // Put fields.
+   void putByte(byte value)
+   {
+      output.putByte(value);
+   }
+
+
+   void putLong(long value)
+   {
+      output.putLong(value);
+   }
+
+
+   void putString(String value)
+   {
+      output.putString(value);
+   }
+
+
+   // Send message.
+   void send() throws IOException
+   {
+      output.write(out);
+   }
+
+
+   // Receive message.
+   // Time-out and throw exception if not received within timer.
+   void receive(int timer) throws IOException
+   {
+      if (!utils.waitForData(in, timer))
+      {
+         throw new IOException("receive time-out");
+      }
+
+      if (framed)
+      {
+         input.read(utils, in, SOCKET_TIME_OUT);
+         buffered = true;
+      }
+      else
+      {
+         buffered = false;
+      }
+   }
+
+
+   // Receive request on server connection.
+   // When waiting for a further request, return false if the peer
+   // closes the connection or sends nothing within KEEP_ALIVE_TIME_OUT.
+   boolean receiveRequest(boolean waiting) throws IOException
+   {
+      if (waiting)
+      {
+         try {
+            if (!utils.waitForData(in, KEEP_ALIVE_TIME_OUT))
+            {
+               return(false);
+            }
+         }
+         catch (IOException e) {
+            return(false);
+         }
+      }
+
+      if (framed)
+      {
+         input.read(utils, in, SOCKET_TIME_OUT);
+      }
+      else
+      {
+         // Read all header lines so that requests rejected before
+         // reading their arguments leave none behind.
+         input.clear(Message.LINE_MESSAGE);
+         input.putString(utils.readLineFromStream(in));
+         input.putString(utils.readLineFromStream(in));
+         String request = utils.readLineFromStream(in);
+         input.putString(request);
+
+         for (int i = 3, n = Server.getHeaderLines(request); i < n; i++)
+         {
+            input.putString(utils.readLineFromStream(in));
+         }
+      }
+
+      buffered = true;
+
+      return(true);
+   }
+
+
+   // Load request header read by selector.
+   void loadRequest(byte[] header, int length)
+   {
+      if (framed)
+      {
+         input.load(header, 0, length, Message.FRAMED_MESSAGE);
+      }
+      else
+      {
+         input.load(header, 0, length, Message.LINE_MESSAGE);
+      }
+
+      buffered = true;
+   }
+
+
+   // More fields in received framed message? Lets a request carry
+   // fields that older peers do not send.
+   boolean hasField()
+   {
+      return(buffered && input.hasField());
+   }
+
+
+   // Get fields.
+   byte getByte() throws IOException
+   {
+      if (buffered)
+      {
+         return(input.getByte());
+      }
+
+      return(utils.readByteFromStream(in));
+   }
+
+
+   // Text request lines that are not numbers throw NumberFormatException.
+   long getLong() throws IOException
+   {
+      if (buffered)
+      {
+         return(input.getLong());
+      }
+
+      return(utils.readLongFromStream(in));
+   }
+
+
+   String getString() throws IOException
+   {
+      if (buffered)
+      {
+         return(input.getString());
+      }
+
+      return(utils.readLineFromStream(in));
+   }
+
+
+   // Maximum file size that can be transferred with peer.
+   long getMaxFileSize()
+   {
+      if (framed)
+      {
+         return(MAX_FRAMED_TRANSFER_FILE_SIZE);
+      }
+
+      return(MAX_TRANSFER_FILE_SIZE);
+   }
+
+
+   // Check that an idle connection has not been closed by the peer.
+   boolean isAlive()
+   {
+      if (socket.isClosed())
+      {
+         return(false);
+      }
+
+      try {
+         if (in.available() > 0)
+         {
+            // Unsolicited data.
+            return(false);
+         }
+
+         socket.setSoTimeout(1);
+
+         try {
+            if (in.read() == -1)
+            {
+               return(false);
+            }
+
+            // Unsolicited data.
+            return(false);
+         }
+         catch (SocketTimeoutException e) {
+            return(true);
+         }
+         finally {
+            socket.setSoTimeout(SOCKET_TIME_OUT);
+         }
+      }
+      catch (IOException e) {
+         return(false);
+      }
+   }
+
+
+   // Close connection.
+   void close()
+   {
+      try {
+         socket.close();
+      }
+      catch (Exception e) {
+      }
+   }
+
+
+   // Pool key.
+   String getKey()
+   {
+      return(getKey(host, port));
+   }
+
+
+   static String getKey(String host, int port)
+   {
+      return(host + ":" + port);
+   }
+}
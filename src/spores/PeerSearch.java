@@ -18,6 +18,20 @@ import java.util.*;
 
 /**
  * Recursive/concurrent peer search.
+ * <p>
+ * A search has a time budget. Framed peers are sent what is left of
+ * it, less SEARCH_HOP_TIME for relaying the answer back, so a
+ * deeper hop gives up before the hop waiting on it. Searches still
+ * outstanding when the budget runs out, or when the search is
+ * cancelled, are abandoned and their connections closed.
+ * <p>
+ * The search returns as soon as every peer has answered or enough
+ * copies are found: by default the copies searched for, though a
+ * caller can wait for more, as for a multi-source download.
+ * <p>
+ * This floods the peers to the full search depth. See RingSearch
+ * for a search widening by depth, and RandomWalkSearch for one
+ * sampling peers at random.
  */
 public class PeerSearch extends Thread implements Parameters {
    // Results.
@@ -38,12 +52,35 @@ public class PeerSearch extends Thread implements Parameters {
    String       searchID;
    long         searchCopies;
    long         searchDepth;
-   SearchThread[] searchThreads;
+   long         searchTime;
 
-   // Constructor.
+   // Search threads, replaced as a ring search widens.
+   volatile SearchThread[] searchThreads;
+
+   // Copies to wait for, -1 for all peers to answer.
+   long enoughCopies;
+
+   // Peers yet to answer, and copies found so far.
+   int  pending;
+   long foundCopies;
+
+   // Cancelled?
+   volatile boolean cancelled;
+
+   // Constructors.
    PeerSearch(Utils utils, P2P.PeerList peerList, int localPort,
               String searchFile, String searchType, String searchCode,
               String searchID, long searchCopies, long searchDepth)
+   {
+      this(utils, peerList, localPort, searchFile, searchType, searchCode,
+           searchID, searchCopies, searchDepth, SEARCH_TIME_OUT);
+   }
+
+
+   PeerSearch(Utils utils, P2P.PeerList peerList, int localPort,
+              String searchFile, String searchType, String searchCode,
+              String searchID, long searchCopies, long searchDepth,
+              long searchTime)
    {
       this.utils        = utils;
       this.peerList     = peerList;
@@ -54,6 +91,11 @@ public class PeerSearch extends Thread implements Parameters {
       this.searchID     = searchID;
       this.searchCopies = searchCopies;
       this.searchDepth  = searchDepth;
+      this.searchTime   = searchTime;
+      enoughCopies      = searchCopies;
+      pending           = 0;
+      foundCopies       = 0;
+      cancelled         = false;
       setDaemon(true);
 
       searchThreads = new SearchThread[peerList.size()];
@@ -77,41 +119,96 @@ public class PeerSearch extends Thread implements Parameters {
       }
 
       // Start the search threads.
+      pending = searchThreads.length;
+
       for (int i = 0; i < searchThreads.length; i++)
       {
          searchThreads[i].start();
       }
 
-      // Wait for thread completions or time-out.
-      for (int i = 0; i < SEARCH_TIME_OUT; i += 100)
+      // Wait for peers to answer or enough copies to be found, until
+      // time-out or cancellation.
+      long endTime = System.currentTimeMillis() + searchTime;
+
+      synchronized (this)
       {
-         int j;
+         long wait;
 
-         for (j = 0; j < searchThreads.length; j++)
+         while (!cancelled && (pending > 0) &&
+                !((enoughCopies > 0) && (foundCopies >= enoughCopies)) &&
+                ((wait = endTime - System.currentTimeMillis()) > 0))
          {
-            if (searchThreads[j].isAlive())
-            {
+            try {
+               wait(wait);
+            }
+            catch (InterruptedException e) {
                break;
             }
          }
+      }
 
-         if (j == searchThreads.length)
-         {
-            break;
-         }
+      cancel();
+   }
 
-         try {
-            Thread.sleep(100);
-         }
-         catch (InterruptedException e) {
-         }
+
+   // Get search mode from system property.
+   static int getSearchMode()
+   {
+      String s = System.getProperty(SEARCH_MODE_PROPERTY);
+
+      if (s == null)
+      {
+         return(DEFAULT_SEARCH_MODE);
+      }
+
+      if (s.equalsIgnoreCase("flood"))
+      {
+         return(FLOOD_SEARCH);
+      }
+
+      if (s.equalsIgnoreCase("ring"))
+      {
+         return(RING_SEARCH);
+      }
+
+      if (s.equalsIgnoreCase("walk"))
+      {
+         return(WALK_SEARCH);
+      }
+
+      return(DEFAULT_SEARCH_MODE);
+   }
+
+
+   // Peer search completed.
+   synchronized void searchDone(SearchThread searchThread)
+   {
+      pending--;
+
+      if (searchThread.result == SUCCESS)
+      {
+         foundCopies += searchThread.copiesFound;
+      }
+
+      notifyAll();
+   }
+
+
+   // Abandon incomplete peer searches: results they give later are
+   // dropped.
+   void cancel()
+   {
+      synchronized (this)
+      {
+         cancelled = true;
+         notifyAll();
       }
 
-      // Interrupt incomplete threads.
       for (int i = 0; i < searchThreads.length; i++)
       {
          if (searchThreads[i].isAlive())
          {
+            searchThreads[i].cancel();
             searchThreads[i].interrupt();
          }
       }
@@ -131,6 +228,9 @@ public class PeerSearch extends Thread implements Parameters {
       long   targetSize;
       long   copiesFound;
 
+      // Connection to peer while searching.
+      PeerConnection connection;
+
       // Constructor.
       SearchThread(P2P.PeerAddress peerAddress)
       {
@@ -146,55 +246,118 @@ public class PeerSearch extends Thread implements Parameters {
       // Perform peer search.
       public void run()
       {
-         Socket socket = null;
+         PeerConnection connection = null;
 
          try {
-            socket = utils.createSocket(peerAddress.host, peerAddress.port);
-
-            // Send search request.
-            PrintWriter out = utils.getPrintWriter(socket);
-            utils.printToStream(out,
-                                Double.toString(VERSION) + "\n" +
-                                Integer.toString(localPort) + "\n" + SEARCH_REQUEST + "\n" +
-                                searchFile + "\n" + searchType + "\n" + searchCode + "\n" +
-                                searchID + "\n" + Long.toString(searchCopies) + "\n" +
-                                Long.toString(searchDepth));
-
-            // Get response.
-            DataInputStream in       = utils.getDataInputStream(socket);
-            byte            response = utils.readByteFromStream(in, SEARCH_TIME_OUT);
-
-            if (response == POSITIVE_RESPONSE)
+            connection = utils.openConnection(peerAddress.host, peerAddress.port,
+                                              localPort);
+
+            synchronized (this)
             {
-               result      = SUCCESS;
-               targetName  = utils.readLineFromStream(in);
-               targetPeer  = utils.readLineFromStream(in);
-               targetPort  = utils.readLongFromStream(in);
-               targetSize  = utils.readLongFromStream(in);
-               copiesFound = utils.readLongFromStream(in);
+               if (cancelled)
+               {
+                  throw new IOException("Search cancelled");
+               }
+
+               this.connection = connection;
             }
-            else
+
+            search(connection);
+
+            synchronized (this)
             {
-               result = FAIL;
+               if (!cancelled)
+               {
+                  utils.releaseConnection(connection);
+                  connection      = null;
+                  this.connection = null;
+               }
             }
          }
          catch (Exception e) {
             result = ERROR;
 
+            if (cancelled)
+            {
+               return;
+            }
+
             String msgString = new String("Error searching " + searchType +
                                           " " + searchFile + " from " + peerAddress.host + ":" +
                                           peerAddress.port + ": " + e.toString());
             Log.getLog().logWarning(msgString);
          }
          finally {
-            try {
-               if (socket != null)
+            if (connection != null)
+            {
+               utils.closeConnection(connection);
+            }
+
+            searchDone(this);
+         }
+      }
+
+
+      // Search peer on connection.
+      void search(PeerConnection connection) throws IOException
+      {
+         // Send search request.
+         connection.startRequest(localPort, SEARCH_REQUEST);
+         connection.putString(searchFile);
+         connection.putString(searchType);
+         connection.putString(searchCode);
+         connection.putString(searchID);
+         connection.putLong(searchCopies);
+         connection.putLong(searchDepth);
+
+         if (connection.framed)
+         {
+            connection.putLong(searchTime - SEARCH_HOP_TIME);
+         }
+
+         connection.send();
+
+         // Get response.
+         connection.receive((int)searchTime);
+         byte response = connection.getByte();
+
+         if (response == POSITIVE_RESPONSE)
+         {
+            String name   = connection.getString();
+            String peer   = connection.getString();
+            long   port   = connection.getLong();
+            long   size   = connection.getLong();
+            long   copies = connection.getLong();
+
+            // Give the result whole, under the search's lock, unless
+            // the caller has already taken the results.
+            synchronized (PeerSearch.this)
+            {
+               if (!cancelled)
                {
-                  utils.closeSocket(socket);
+                  targetName  = name;
+                  targetPeer  = peer;
+                  targetPort  = port;
+                  targetSize  = size;
+                  copiesFound = copies;
+                  result      = SUCCESS;
                }
             }
-            catch (Exception e) {
-            }
+         }
+         else
+         {
+            result = FAIL;
+         }
+      }
+
+
+      // Abandon search, closing connection to peer.
+      synchronized void cancel()
+      {
+         if (connection != null)
+         {
+            utils.closeConnection(connection);
+            connection = null;
          }
       }
    }
@@ -0,0 +1,178 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.util.*;
+
+
+/**
+ * Searches this peer is relaying, by the name, type and code searched
+ * for.
+ * <p>
+ * Searches started by different peers for the same popular file reach
+ * a relaying peer under different search IDs. Rather than sending each
+ * to its neighbours in turn, a search arriving while another for the
+ * same file is outstanding waits for that one and shares its results,
+ * provided it searches at least as deep for at least as many copies.
+ * <p>
+ * A search joins only one ending within SEARCH_HOP_TIME before its own
+ * end, so it is answered in time. As a forwarded search ends before
+ * the search forwarding it, no chain of searches waiting on each other
+ * can then lead back to a search it waits on. Nor does a search join
+ * one sent to the peer it came from. Unframed peers are not sent the
+ * time left and so search for the full time; searches sent to them
+ * are not shared.
+ */
+public class PendingSearches implements Parameters {
+   // Outstanding searches by search key.
+   Hashtable searches;
+
+   // Constructor.
+   public PendingSearches()
+   {
+      searches = new Hashtable();
+   }
+
+
+   /**
+    * Join outstanding search for file able to answer the given one,
+    * from the given peer, or if there is none, record the given search
+    * as outstanding.
+    * Return the search joined or recorded, or null if an outstanding
+    * search cannot answer the given one.
+    */
+   synchronized Search join(String name, String type, String code,
+                            Search search, String host)
+   {
+      String key     = getKey(name, type, code);
+      Search pending = (Search)searches.get(key);
+
+      if (pending == null)
+      {
+         searches.put(key, search);
+
+         return(search);
+      }
+
+      if ((pending.depth >= search.depth) &&
+          ((pending.copies == -1) ||
+           ((search.copies != -1) && (pending.copies >= search.copies))) &&
+          (pending.endTime <= search.endTime) &&
+          (pending.endTime >= (search.endTime - SEARCH_HOP_TIME)) &&
+          !pending.hasPeer(host))
+      {
+         return(pending);
+      }
+
+      return(null);
+   }
+
+
+   // Outstanding search is done: give its results to those waiting.
+   synchronized void finish(String name, String type, String code,
+                            Search search, PeerSearch peerSearch)
+   {
+      String key = getKey(name, type, code);
+
+      if (searches.get(key) == search)
+      {
+         searches.remove(key);
+      }
+
+      search.finish(peerSearch);
+   }
+
+
+   // Search key.
+   private static String getKey(String name, String type, String code)
+   {
+      return(type + ":" + code + ":" + name);
+   }
+
+
+   // Outstanding search.
+   static class Search {
+      long         copies;
+      long         depth;
+      P2P.PeerList peers;
+      long         endTime;
+      boolean      timed;
+      PeerSearch   peerSearch;
+      boolean      done;
+
+      Search(Utils utils, long copies, long depth, P2P.PeerList peers,
+             long searchTime)
+      {
+         this.copies = copies;
+         this.depth  = depth;
+         this.peers  = peers;
+         endTime     = System.currentTimeMillis() + searchTime;
+         timed       = true;
+         peerSearch  = null;
+         done        = false;
+
+         // Are peers sent the time left?
+         for (int i = 0; i < peers.size(); i++)
+         {
+            P2P.PeerAddress peerAddress = (P2P.PeerAddress)peers.get(i);
+
+            if (utils.isTextPeer(peerAddress.host, peerAddress.port))
+            {
+               timed = false;
+            }
+         }
+      }
+
+
+      // Is search sent to given peer?
+      boolean hasPeer(String host)
+      {
+         for (int i = 0; i < peers.size(); i++)
+         {
+            if (((P2P.PeerAddress)peers.get(i)).host.equals(host))
+            {
+               return(true);
+            }
+         }
+
+         return(false);
+      }
+
+
+      // Search done.
+      synchronized void finish(PeerSearch peerSearch)
+      {
+         this.peerSearch = peerSearch;
+         done            = true;
+         notifyAll();
+      }
+
+
+      // Wait for search results.
+      // Return null if the search is not done in time.
+      synchronized PeerSearch getResults(long time)
+      {
+         long endTime = System.currentTimeMillis() + time;
+         long wait;
+
+         while (!done && ((wait = endTime - System.currentTimeMillis()) > 0))
+         {
+            try {
+               wait(wait);
+            }
+            catch (InterruptedException e) {
+               break;
+            }
+         }
+
+         return(peerSearch);
+      }
+   }
+}
@@ -23,8 +23,11 @@ import javax.swing.table.*;
 
 /**
  * Private files.
+ * <p>
+ * The list is rebuilt by refresh, and kept current between refreshes
+ * by updating single files as a folder watcher reports them changed.
  */
-public class PrivateFiles implements Parameters {
+public class PrivateFiles implements Parameters, FolderWatcher.Listener {
    // GUI controls.
    Controls controls;
 
@@ -32,6 +35,9 @@ public class PrivateFiles implements Parameters {
    LinkedList fileList;
    int        fileIndex;
 
+   // Private folder watcher.
+   FolderWatcher watcher;
+
    // File name comparator.
    Utils.NameCompare nameCompare;
 
@@ -154,7 +160,7 @@ public class PrivateFiles implements Parameters {
          return;
       }
 
-      refresh();
+      update(fileName);
    }
 
 
@@ -199,7 +205,7 @@ public class PrivateFiles implements Parameters {
                Utils.deleteFile(file.getAbsolutePath());
             }
 
-            refresh();
+            update(fileName);
 
             return;
          }
@@ -212,64 +218,146 @@ public class PrivateFiles implements Parameters {
    /**
     * Refresh file list.
     */
-   void refresh()
+   synchronized void refresh()
    {
       controls.statusText.setText("");
 
-      LinkedList     fileNames   = Utils.listFiles(controls.privateFolder);
-      LinkedList     newFileList = new LinkedList();
-      Utils.FileElem fileElem;
-      String         fileName;
-      File           file;
+      // Watch private folder for changes.
+      watch();
+
+      LinkedList fileNames   = Utils.listFiles(controls.privateFolder);
+      LinkedList newFileList = new LinkedList();
 
       for (int i = 0; i < fileNames.size(); i++)
       {
-         fileElem         = new Utils.FileElem();
-         fileElem.name    = (String)fileNames.get(i);
-         fileName         = controls.privateFolder + File.separator + fileElem.name;
-         fileElem.md5code = Utils.getMD5ForFile(fileName);
-         file             = new File(fileName);
+         newFileList.add(getFileElem((String)fileNames.get(i)));
+      }
+
+      HashCache.saveAll();
+      sort(newFileList);
+      fileList = newFileList;
+      display();
+   }
+
 
-         if (file.exists() && file.canRead())
+   /**
+    * Update file in list after it is added, changed or removed.
+    */
+   synchronized void update(String name)
+   {
+      LinkedList newFileList = new LinkedList(fileList);
+
+      for (int i = 0; i < newFileList.size(); i++)
+      {
+         if (((Utils.FileElem)newFileList.get(i)).name.equals(name))
          {
-            if (file.isDirectory())
-            {
-               fileElem.type = FOLDER;
-            }
-            else
-            {
-               fileElem.type = FILE;
-            }
+            newFileList.remove(i);
+
+            break;
+         }
+      }
+
+      if (new File(controls.privateFolder, name).exists())
+      {
+         newFileList.add(getFileElem(name));
+      }
+
+      sort(newFileList);
+      fileList = newFileList;
+      display();
+   }
+
+
+   // Private file or folder changed.
+   public void fileChanged(String name)
+   {
+      update(name);
+   }
+
+
+   // Private folder changes lost.
+   public void folderChanged()
+   {
+      refresh();
+   }
+
+
+   // Watch private folder, replacing watcher if the folder changed.
+   private void watch()
+   {
+      if ((watcher != null) && watcher.folder.equals(controls.privateFolder))
+      {
+         return;
+      }
+
+      if (watcher != null)
+      {
+         watcher.quit();
+         watcher = null;
+      }
+
+      try {
+         watcher = new FolderWatcher(controls.privateFolder, this);
+         watcher.start();
+      }
+      catch (IOException e) {
+         String msgString = new String("Cannot watch private folder " +
+                                       controls.privateFolder + ": " + e.toString());
+         Log.getLog().logWarning(msgString);
+      }
+   }
+
+
+   // Get list element for private file.
+   private Utils.FileElem getFileElem(String name)
+   {
+      Utils.FileElem fileElem = new Utils.FileElem();
+      String         fileName = controls.privateFolder + File.separator + name;
+      File           file     = new File(fileName);
+
+      fileElem.name    = name;
+      fileElem.md5code = Utils.getMD5ForFile(fileName);
 
-            fileElem.size     = Utils.getFileSize(file.getAbsolutePath());
-            fileElem.modified = file.lastModified();
+      if (file.exists() && file.canRead())
+      {
+         if (file.isDirectory())
+         {
+            fileElem.type = FOLDER;
          }
          else
          {
-            fileElem.type     = FILE;
-            fileElem.size     = 0;
-            fileElem.modified = 0;
+            fileElem.type = FILE;
          }
 
-         newFileList.add(fileElem);
+         fileElem.size     = Utils.getFileSize(file.getAbsolutePath());
+         fileElem.modified = file.lastModified();
       }
+      else
+      {
+         fileElem.type     = FILE;
+         fileElem.size     = 0;
+         fileElem.modified = 0;
+      }
+
+      return(fileElem);
+   }
+
 
-      // Sort by user preference.
+   // Sort file list by user preference.
+   private void sort(LinkedList fileList)
+   {
       if (controls.propertiesFileByNameButton.isSelected())
       {
-         Collections.sort(newFileList, nameCompare);
+         Collections.sort(fileList, nameCompare);
       }
       else if (controls.propertiesFileByModifiedButton.isSelected())
       {
-         Collections.sort(newFileList, modifiedCompare);
+         Collections.sort(fileList, modifiedCompare);
       }
       else
       {
-         Collections.sort(newFileList, sizeCompare);
+         Collections.sort(fileList, sizeCompare);
       }
-
-      fileList = newFileList;
-      display();
    }
 
 
@@ -30,6 +30,13 @@ public class Properties implements Parameters {
    // GUI controls.
    private Controls controls;
 
+   // Running totals of shared files and bytes, the folder they
+   // were counted in, and when.
+   private long   sharedCount;
+   private long   sharedSize;
+   private String totalsFolder;
+   private long   totalsTime;
+
    // Constructor.
    public Properties(Controls controls)
    {
@@ -79,8 +86,9 @@ public class Properties implements Parameters {
                                                     DEFAULT_MAX_SHARED_FILES));
       }
 
-      if ((Utils.getFileCount(controls.sharedFolder) - 1 +
-           Utils.getFileCount(fileName)) >= value)
+      checkTotals();
+
+      if ((getSharedCount() + Utils.getFileCount(fileName)) >= value)
       {
          return("Max number of shared files reached");
       }
@@ -103,8 +111,7 @@ public class Properties implements Parameters {
                                                      DEFAULT_MAX_SHARED_SIZE));
       }
 
-      if ((Utils.getFileSize(controls.sharedFolder) +
-           Utils.getFileSize(fileName)) > (value * 1000))
+      if ((getSharedSize() + Utils.getFileSize(fileName)) > (value * 1000L))
       {
          return("Max shared files total size reached");
       }
@@ -226,14 +233,84 @@ public class Properties implements Parameters {
    // Refresh statistics.
    void refresh()
    {
-      controls.propertiesFilesText.setText(Long.toString(Utils.getFileCount(
-                                                            controls.sharedFolder) - 1));
+      checkTotals();
+      controls.propertiesFilesText.setText(Long.toString(getSharedCount()));
 
-      long size = Utils.getFileSize(controls.sharedFolder) / 1000;
+      long size = getSharedSize() / 1000;
       controls.propertiesKbytesText.setText(Long.toString(size));
    }
 
 
+   // Recount shared file totals if the shared folder has changed or
+   // they are due for reconciliation.
+   // Return true if recounted.
+   synchronized boolean checkTotals()
+   {
+      if ((totalsFolder == null) ||
+          !totalsFolder.equals(controls.sharedFolder) ||
+          ((System.currentTimeMillis() - totalsTime) >= SHARED_TOTALS_FREQ))
+      {
+         countTotals();
+
+         return(true);
+      }
+
+      return(false);
+   }
+
+
+   // Count shared file totals from the shared folder.
+   synchronized void countTotals()
+   {
+      totalsFolder = controls.sharedFolder;
+      totalsTime   = System.currentTimeMillis();
+      sharedCount  = Utils.getFileCount(totalsFolder) - 1;
+      sharedSize   = Utils.getFileSize(totalsFolder);
+
+      if (sharedCount < 0)
+      {
+         sharedCount = 0;
+      }
+   }
+
+
+   // Add file/folder now in shared folder to totals.
+   synchronized void addShared(String fileName)
+   {
+      // A recount already includes the file.
+      if (checkTotals())
+      {
+         return;
+      }
+
+      sharedCount += Utils.getFileCount(fileName);
+      sharedSize  += Utils.getFileSize(fileName);
+   }
+
+
+   // Remove file/folder about to leave shared folder from totals.
+   synchronized void removeShared(String fileName)
+   {
+      checkTotals();
+      sharedCount -= Utils.getFileCount(fileName);
+      sharedSize  -= Utils.getFileSize(fileName);
+   }
+
+
+   // Get shared file count.
+   synchronized long getSharedCount()
+   {
+      return(sharedCount);
+   }
+
+
+   // Get shared file size.
+   synchronized long getSharedSize()
+   {
+      return(sharedSize);
+   }
+
+
    /**
     * Load properties.
     */
@@ -0,0 +1,44 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.util.*;
+
+
+/**
+ * Random walk search.
+ * <p>
+ * Rather than flooding the peers, sends WALKERS walkers out, each
+ * passed from peer to peer at random for up to WALK_TTL hops. As
+ * files are pushed to many peers, a small random sample of them is
+ * likely to hold a copy. A walker finding the file sends a hit to
+ * this peer directly and stops. Every WALK_CHECK_HOPS hops a walker
+ * checks back here, and stops once the search has ended. Hits are
+ * collected as for a relayed search.
+ */
+public class RandomWalkSearch extends RelaySearch {
+   // Constructor.
+   RandomWalkSearch(SearchRelay relay, Utils utils, P2P.PeerList peerList,
+                    int localPort, String searchFile, String searchType,
+                    String searchCode, String searchID, long searchCopies,
+                    long searchTime)
+   {
+      super(relay, utils, peerList, localPort, searchFile, searchType,
+            searchCode, searchID, searchCopies, WALK_TTL, searchTime);
+   }
+
+
+   // Send walkers out.
+   // Return false if the search is already routed here.
+   boolean send()
+   {
+      return(relay.walk(this));
+   }
+}
@@ -0,0 +1,147 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.util.*;
+
+
+/**
+ * Asynchronous peer search.
+ * <p>
+ * Sends queries to the peers through the search relay and collects
+ * the hits routed back, until enough copies are found or its time
+ * runs out. Once it has the copies searched for, it waits at most
+ * RELAY_HIT_WAIT for any more its caller wants. The hits are then
+ * given as completed search threads, one per hit, as a synchronous
+ * search gives its answers.
+ */
+public class RelaySearch extends PeerSearch {
+   // Search relay.
+   SearchRelay relay;
+
+   // Hit locations, and when the copies searched for were found.
+   LinkedList hits;
+   long       hitTime;
+
+   // Constructor.
+   RelaySearch(SearchRelay relay, Utils utils, P2P.PeerList peerList,
+               int localPort, String searchFile, String searchType,
+               String searchCode, String searchID, long searchCopies,
+               long searchDepth, long searchTime)
+   {
+      super(utils, peerList, localPort, searchFile, searchType, searchCode,
+            searchID, searchCopies, searchDepth, searchTime);
+      this.relay = relay;
+      hits       = new LinkedList();
+      hitTime    = 0;
+   }
+
+
+   // Run search.
+   public void run()
+   {
+      if ((searchCopies == 0) || (peerList.size() == 0) || !send())
+      {
+         return;
+      }
+
+      // Wait for hits.
+      long endTime = System.currentTimeMillis() + searchTime;
+
+      synchronized (this)
+      {
+         while (!cancelled &&
+                !((enoughCopies > 0) && (foundCopies >= enoughCopies)))
+         {
+            long wait = endTime - System.currentTimeMillis();
+
+            if (hitTime > 0)
+            {
+               wait = Math.min(wait, hitTime + RELAY_HIT_WAIT -
+                               System.currentTimeMillis());
+            }
+
+            if (wait <= 0)
+            {
+               break;
+            }
+
+            try {
+               wait(wait);
+            }
+            catch (InterruptedException e) {
+               break;
+            }
+         }
+
+         cancelled = true;
+
+         // Give hits as completed searches.
+         SearchThread[] results = new SearchThread[hits.size()];
+
+         for (int i = 0; i < results.length; i++)
+         {
+            LocationCache.Location location = (LocationCache.Location)hits.get(i);
+
+            results[i]             = new SearchThread(null);
+            results[i].result      = SUCCESS;
+            results[i].targetName  = location.name;
+            results[i].targetPeer  = location.peer;
+            results[i].targetPort  = location.port;
+            results[i].targetSize  = location.size;
+            results[i].copiesFound = 1;
+         }
+
+         searchThreads = results;
+      }
+
+      relay.removeRoute(searchID);
+   }
+
+
+   // Send search out through the relay.
+   // Return false if the search is already routed here.
+   boolean send()
+   {
+      return(relay.search(this));
+   }
+
+
+   // Hit routed back: add it unless the location is known.
+   synchronized void addHit(LocationCache.Location location)
+   {
+      if (cancelled)
+      {
+         return;
+      }
+
+      for (int i = 0; i < hits.size(); i++)
+      {
+         LocationCache.Location hit = (LocationCache.Location)hits.get(i);
+
+         if (hit.peer.equals(location.peer) && (hit.port == location.port) &&
+             hit.name.equals(location.name))
+         {
+            return;
+         }
+      }
+
+      hits.add(location);
+      foundCopies++;
+
+      if ((hitTime == 0) && (searchCopies > 0) &&
+          (foundCopies >= searchCopies))
+      {
+         hitTime = System.currentTimeMillis();
+      }
+
+      notifyAll();
+   }
+}
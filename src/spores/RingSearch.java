@@ -0,0 +1,156 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.util.*;
+
+
+/**
+ * Expanding ring search.
+ * <p>
+ * Searches the peers to depth 1, then 2, 4 and so on up to the given
+ * depth, stopping after the first ring to find the copies searched
+ * for. As files are replicated widely, most are found near at hand
+ * without flooding the network. Each ring is a search of its own,
+ * synchronous or relayed, under its own search ID, so peers that saw
+ * a smaller ring do not take the larger one for a duplicate. The
+ * results are those of the ring that found the most copies.
+ */
+public class RingSearch extends PeerSearch {
+   // Controls.
+   private Controls controls;
+
+   // Maximum search depth.
+   private long maxDepth;
+
+   // Ring being searched.
+   private volatile PeerSearch ring;
+
+   // Constructor.
+   RingSearch(Controls controls, P2P.PeerList peerList, String searchFile,
+              String searchType, String searchCode, String searchID,
+              long searchCopies, long searchDepth, long searchTime)
+   {
+      super(controls.utils, peerList, controls.p2p.localPort, searchFile,
+            searchType, searchCode, searchID, searchCopies, searchDepth,
+            searchTime);
+      this.controls = controls;
+      maxDepth      = searchDepth;
+      ring          = null;
+   }
+
+
+   // Run search.
+   public void run()
+   {
+      if (searchCopies == 0)
+      {
+         return;
+      }
+
+      long endTime = System.currentTimeMillis() + searchTime;
+      long depth   = 1;
+
+      // Searching for all copies: go straight to the full depth.
+      if (searchCopies == -1)
+      {
+         depth = maxDepth;
+      }
+
+      while (!cancelled)
+      {
+         depth = Math.min(depth, maxDepth);
+
+         long time = endTime - System.currentTimeMillis();
+
+         if (time <= SEARCH_HOP_TIME)
+         {
+            break;
+         }
+
+         // Search ring.
+         ring = createRing(depth, time);
+
+         if (cancelled)
+         {
+            break;
+         }
+
+         ring.run();
+
+         if (cancelled)
+         {
+            break;
+         }
+
+         // Keep results of the ring finding the most copies.
+         if (ring.foundCopies >= foundCopies)
+         {
+            foundCopies   = ring.foundCopies;
+            searchThreads = ring.searchThreads;
+         }
+
+         if ((foundCopies >= searchCopies) || (depth >= maxDepth))
+         {
+            break;
+         }
+
+         depth *= 2;
+      }
+   }
+
+
+   // Create search of ring.
+   private PeerSearch createRing(long depth, long time)
+   {
+      P2P          p2p    = controls.p2p;
+      P2P.PeerList peers  = p2p.getSearchPeers(peerList.copy(), searchFile,
+                                               searchType, searchCode, depth);
+      String       ringID = searchID;
+      PeerSearch   ring;
+
+      if (depth > 1)
+      {
+         ringID = Utils.getMD5ForString(searchID + ":" + depth);
+      }
+
+      controls.searchCache.add(ringID);
+
+      if (SearchRelay.isEnabled())
+      {
+         ring = new RelaySearch(controls.searchRelay, controls.utils, peers,
+                                localPort, searchFile, searchType, searchCode, ringID,
+                                searchCopies, depth, Math.min(time, depth * RING_HOP_TIME));
+      }
+      else
+      {
+         ring = new PeerSearch(controls.utils, peers, localPort, searchFile,
+                               searchType, searchCode, ringID, searchCopies, depth, time);
+      }
+
+      ring.enoughCopies = enoughCopies;
+
+      return(ring);
+   }
+
+
+   // Abandon search.
+   void cancel()
+   {
+      super.cancel();
+
+      PeerSearch ring = this.ring;
+
+      if (ring != null)
+      {
+         ring.cancel();
+      }
+   }
+}
@@ -0,0 +1,769 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Asynchronous search relay.
+ * <p>
+ * Searches are relayed as queries and hits, in the manner of Gnutella.
+ * A peer acknowledges a query at once and records, by search ID, the
+ * peer it came from. It then answers the query from here and forwards
+ * it to its neighbours. Hits are sent back to the recorded peer, hop
+ * by hop, until they reach the peer that started the search. A search
+ * thus holds a route entry at each peer, not a thread and a socket.
+ * Routes expire with the search's time budget.
+ * <p>
+ * Queries and hits are sent by a small pool of threads. An unframed
+ * peer, which cannot take queries, is sent a search request instead,
+ * and its answer is routed back as a hit. As such a search waits on
+ * the peer's answer, it is run by a separate, bounded pool of search
+ * threads, so it does not hold up queries and hits.
+ * <p>
+ * The relay also passes on the walkers of random walk searches. A
+ * walker goes to one neighbour at a time, checking back with the peer
+ * that started the search every few hops, and sends any hit to that
+ * peer directly.
+ */
+public class SearchRelay implements Parameters {
+   // Controls.
+   private Controls controls;
+
+   // Routes by search ID.
+   Hashtable routes;
+
+   // Query and hit senders, and searchers of unframed peers.
+   ThreadPoolExecutor senders;
+   ThreadPoolExecutor searchers;
+
+   // Constructor.
+   public SearchRelay(Controls controls)
+   {
+      this.controls = controls;
+      routes        = new Hashtable();
+      senders       = new ThreadPoolExecutor(RELAY_THREADS, RELAY_THREADS,
+                                             SOCKET_TIME_OUT, TimeUnit.MILLISECONDS,
+                                             new LinkedBlockingQueue(), new SenderFactory());
+      senders.allowCoreThreadTimeOut(true);
+      searchers = new ThreadPoolExecutor(RELAY_SEARCH_THREADS,
+                                         RELAY_SEARCH_THREADS, SOCKET_TIME_OUT, TimeUnit.MILLISECONDS,
+                                         new ArrayBlockingQueue(MAX_RELAY_SEARCHES), new SenderFactory());
+      searchers.allowCoreThreadTimeOut(true);
+   }
+
+
+   // Are searches started here relayed?
+   static boolean isEnabled()
+   {
+      String s = System.getProperty(RELAY_PROPERTY);
+
+      return((s != null) && s.equalsIgnoreCase("true"));
+   }
+
+
+   // Record route of search.
+   // Return false if the search is already routed here, or too many are.
+   synchronized boolean addRoute(String searchID, Route route)
+   {
+      if (routes.size() >= MAX_RELAY_ROUTES)
+      {
+         purge();
+      }
+
+      if ((getRoute(searchID) != null) || (routes.size() >= MAX_RELAY_ROUTES))
+      {
+         return(false);
+      }
+
+      routes.put(searchID, route);
+
+      return(true);
+   }
+
+
+   // Get unexpired route of search, or null if none.
+   synchronized Route getRoute(String searchID)
+   {
+      Route route = (Route)routes.get(searchID);
+
+      if ((route != null) && (route.expires < System.currentTimeMillis()))
+      {
+         routes.remove(searchID);
+         route = null;
+      }
+
+      return(route);
+   }
+
+
+   // Remove route of search.
+   synchronized void removeRoute(String searchID)
+   {
+      routes.remove(searchID);
+   }
+
+
+   // Remove expired routes.
+   private void purge()
+   {
+      long   now = System.currentTimeMillis();
+      Vector ids = new Vector(routes.keySet());
+
+      for (int i = 0; i < ids.size(); i++)
+      {
+         if (((Route)routes.get(ids.get(i))).expires < now)
+         {
+            routes.remove(ids.get(i));
+         }
+      }
+   }
+
+
+   /**
+    * Start search from here: send its queries to its peers.
+    * Return false if the search is already routed here.
+    */
+   boolean search(RelaySearch search)
+   {
+      Route route = new Route(null, 0, search.searchFile, search.searchType,
+                              search.searchCode, search.searchTime);
+
+      route.search = search;
+
+      if (!addRoute(search.searchID, route))
+      {
+         return(false);
+      }
+
+      for (int i = 0; i < search.peerList.size(); i++)
+      {
+         senders.execute(new QueryTask((P2P.PeerAddress)search.peerList.get(i),
+                                       route, search.searchID, search.searchCopies,
+                                       search.searchDepth, search.searchTime - SEARCH_HOP_TIME));
+      }
+
+      return(true);
+   }
+
+
+   /**
+    * Relay query routed here: answer it from here, and forward it to
+    * neighbours while copies, depth and time are left.
+    */
+   void query(Route route, String searchID, long copies, long depth)
+   {
+      LocationCache.Location location;
+
+      // Look up file here, or for a single copy, where an earlier
+      // search found it.
+      location = controls.server.findShared(route.searchFile,
+                                            route.searchType, route.searchCode);
+
+      if ((location == null) && (copies == 1))
+      {
+         location = controls.locationCache.get(route.searchFile,
+                                               route.searchType, route.searchCode);
+      }
+
+      if (location != null)
+      {
+         senders.execute(new HitTask(route, searchID, location));
+
+         if (copies != -1)
+         {
+            copies--;
+         }
+      }
+
+      // Forward to neighbours, other than the peer the query came from.
+      long time = route.expires - System.currentTimeMillis();
+
+      if ((copies == 0) || (depth <= 0) || (time <= SEARCH_HOP_TIME))
+      {
+         return;
+      }
+
+      P2P          p2p   = controls.p2p;
+      P2P.PeerList peers = p2p.connectedPeers.copy();
+
+      for (int i = 0; i < peers.size(); i++)
+      {
+         P2P.PeerAddress peerAddress = (P2P.PeerAddress)peers.get(i);
+
+         if (peerAddress.host.equals(route.host) &&
+             (peerAddress.port == route.port))
+         {
+            peers.remove(peerAddress);
+
+            break;
+         }
+      }
+
+      peers = p2p.getSearchPeers(peers, route.searchFile, route.searchType,
+                                 route.searchCode, depth);
+
+      for (int i = 0; i < peers.size(); i++)
+      {
+         senders.execute(new QueryTask((P2P.PeerAddress)peers.get(i), route,
+                                       searchID, copies, depth, time - SEARCH_HOP_TIME));
+      }
+   }
+
+
+   /**
+    * Start random walk search from here: send its walkers to its peers,
+    * to different peers where there are enough.
+    * Return false if the search is already routed here.
+    */
+   boolean walk(RelaySearch search)
+   {
+      Route route = new Route(null, 0, search.searchFile, search.searchType,
+                              search.searchCode, search.searchTime);
+
+      route.search = search;
+
+      if (!addRoute(search.searchID, route))
+      {
+         return(false);
+      }
+
+      P2P  p2p  = controls.p2p;
+      Walk walk = new Walk(search.searchFile, search.searchType,
+                           search.searchCode, search.searchID, p2p.localHost, p2p.localPort,
+                           search.searchDepth);
+      Vector peers = new Vector(search.peerList);
+
+      Collections.shuffle(peers, controls.random);
+
+      for (int i = 0; i < WALKERS; i++)
+      {
+         senders.execute(new WalkTask(walk, search.peerList,
+                                      (P2P.PeerAddress)peers.get(i % peers.size()), null, 0));
+      }
+
+      return(true);
+   }
+
+
+   /**
+    * Take walker arriving from given peer: if the file is here, send
+    * the hit to the peer that started the search, else walk on while
+    * hops are left.
+    */
+   void walk(Walk walk, String host, int port)
+   {
+      LocationCache.Location location;
+
+      location = controls.server.findShared(walk.searchFile, walk.searchType,
+                                            walk.searchCode);
+
+      if (location == null)
+      {
+         location = controls.locationCache.get(walk.searchFile, walk.searchType,
+                                               walk.searchCode);
+      }
+
+      if (location != null)
+      {
+         senders.execute(new HitTask(new Route(walk.origin, walk.originPort,
+                                               walk.searchFile, walk.searchType, walk.searchCode, 0),
+                                     walk.searchID, location));
+
+         return;
+      }
+
+      if (walk.ttl <= 0)
+      {
+         return;
+      }
+
+      senders.execute(new WalkTask(walk, null, null, host, port));
+   }
+
+
+   // Is search started here still running?
+   boolean isSearching(String searchID)
+   {
+      Route route = getRoute(searchID);
+
+      return((route != null) && (route.search != null));
+   }
+
+
+   /**
+    * Relay hit toward the peer that started the search, or deliver it
+    * if that is this peer.
+    * Return false if the search is not routed here.
+    */
+   boolean hit(String searchID, LocationCache.Location location)
+   {
+      Route route = getRoute(searchID);
+
+      if (route == null)
+      {
+         return(false);
+      }
+
+      if (route.search != null)
+      {
+         route.search.addHit(location);
+      }
+      else
+      {
+         controls.locationCache.put(route.searchFile, route.searchType,
+                                    route.searchCode, location.name, location.peer, location.port,
+                                    location.size);
+         senders.execute(new HitTask(route, searchID, location));
+      }
+
+      return(true);
+   }
+
+
+   // Route of search: the peer it came from, or the search started
+   // here.
+   static class Route {
+      String      host;
+      int         port;
+      RelaySearch search;
+      String      searchFile;
+      String      searchType;
+      String      searchCode;
+      long        expires;
+
+      Route(String host, int port, String searchFile, String searchType,
+            String searchCode, long searchTime)
+      {
+         this.host       = host;
+         this.port       = port;
+         this.searchFile = searchFile;
+         this.searchType = searchType;
+         this.searchCode = searchCode;
+         search          = null;
+         expires         = System.currentTimeMillis() + searchTime;
+      }
+   }
+
+   // Random walker.
+   static class Walk {
+      String searchFile;
+      String searchType;
+      String searchCode;
+      String searchID;
+      String origin;
+      int    originPort;
+      long   ttl;
+
+      Walk(String searchFile, String searchType, String searchCode,
+           String searchID, String origin, int originPort, long ttl)
+      {
+         this.searchFile = searchFile;
+         this.searchType = searchType;
+         this.searchCode = searchCode;
+         this.searchID   = searchID;
+         this.origin     = origin;
+         this.originPort = originPort;
+         this.ttl        = ttl;
+      }
+   }
+
+   // Send query to peer.
+   class QueryTask implements Runnable {
+      P2P.PeerAddress peerAddress;
+      Route           route;
+      String          searchID;
+      long            copies;
+      long            depth;
+      long            time;
+
+      QueryTask(P2P.PeerAddress peerAddress, Route route, String searchID,
+                long copies, long depth, long time)
+      {
+         this.peerAddress = peerAddress;
+         this.route       = route;
+         this.searchID    = searchID;
+         this.copies      = copies;
+         this.depth       = depth;
+         this.time        = time;
+      }
+
+
+      public void run()
+      {
+         Utils          utils      = controls.utils;
+         int            localPort  = controls.p2p.localPort;
+         PeerConnection connection = null;
+
+         try {
+            connection = utils.openConnection(peerAddress.host, peerAddress.port,
+                                              localPort);
+
+            if (connection.framed)
+            {
+               query(connection);
+               utils.releaseConnection(connection);
+               connection = null;
+
+               return;
+            }
+
+            // Unframed peer: search it instead from a search thread.
+            SearchTask searchTask = new SearchTask(this, connection);
+
+            connection = null;
+
+            try {
+               searchers.execute(searchTask);
+            }
+            catch (RejectedExecutionException e) {
+               utils.closeConnection(searchTask.connection);
+
+               String msgString = new String("Search relay busy: dropping search for " +
+                                             route.searchType + " " + route.searchFile + " to " +
+                                             peerAddress.host + ":" + peerAddress.port);
+               Log.getLog().logWarning(msgString);
+            }
+         }
+         catch (Exception e) {
+            String msgString = new String("Error relaying query for " +
+                                          route.searchType + " " + route.searchFile + " to " +
+                                          peerAddress.host + ":" + peerAddress.port + ": " +
+                                          e.toString());
+            Log.getLog().logWarning(msgString);
+         }
+         finally {
+            if (connection != null)
+            {
+               utils.closeConnection(connection);
+            }
+         }
+      }
+
+
+      // Send query on connection.
+      // A negative answer means the peer has seen the query.
+      void query(PeerConnection connection) throws IOException
+      {
+         connection.startRequest(controls.p2p.localPort, QUERY_REQUEST);
+         connection.putString(route.searchFile);
+         connection.putString(route.searchType);
+         connection.putString(route.searchCode);
+         connection.putString(searchID);
+         connection.putLong(copies);
+         connection.putLong(depth);
+         connection.putLong(time);
+         connection.send();
+         connection.receive(SOCKET_TIME_OUT);
+         connection.getByte();
+      }
+   }
+
+   // Search unframed peer in place of query, routing its answer back
+   // as a hit.
+   class SearchTask implements Runnable {
+      QueryTask      query;
+      PeerConnection connection;
+
+      SearchTask(QueryTask query, PeerConnection connection)
+      {
+         this.query      = query;
+         this.connection = connection;
+      }
+
+
+      public void run()
+      {
+         Utils           utils       = controls.utils;
+         P2P.PeerAddress peerAddress = query.peerAddress;
+         Route           route       = query.route;
+
+         try {
+            P2P.PeerList peers = controls.p2p.createPeerList();
+            peers.addPeer(peerAddress.host, peerAddress.port);
+
+            PeerSearch peerSearch = new PeerSearch(utils, peers,
+                                                   controls.p2p.localPort, route.searchFile, route.searchType,
+                                                   route.searchCode, query.searchID, query.copies, query.depth,
+                                                   Math.max(query.time, 0));
+
+            for (int i = 0; i < peerSearch.searchThreads.length; i++)
+            {
+               PeerSearch.SearchThread searchResult = peerSearch.searchThreads[i];
+
+               searchResult.search(connection);
+
+               if (searchResult.result == PeerSearch.SUCCESS)
+               {
+                  hit(query.searchID, new LocationCache.Location(searchResult.targetName,
+                                                                 searchResult.targetPeer, searchResult.targetPort,
+                                                                 searchResult.targetSize));
+               }
+            }
+
+            utils.releaseConnection(connection);
+            connection = null;
+         }
+         catch (Exception e) {
+            String msgString = new String("Error relaying search for " +
+                                          route.searchType + " " + route.searchFile + " to " +
+                                          peerAddress.host + ":" + peerAddress.port + ": " +
+                                          e.toString());
+            Log.getLog().logWarning(msgString);
+         }
+         finally {
+            if (connection != null)
+            {
+               utils.closeConnection(connection);
+            }
+         }
+      }
+   }
+
+   // Send hit to peer search came from.
+   class HitTask implements Runnable {
+      Route                  route;
+      String                 searchID;
+      LocationCache.Location location;
+
+      HitTask(Route route, String searchID, LocationCache.Location location)
+      {
+         this.route    = route;
+         this.searchID = searchID;
+         this.location = location;
+      }
+
+
+      public void run()
+      {
+         Utils          utils      = controls.utils;
+         int            localPort  = controls.p2p.localPort;
+         PeerConnection connection = null;
+
+         try {
+            connection = utils.openConnection(route.host, route.port, localPort);
+
+            if (connection.framed)
+            {
+               connection.startRequest(localPort, HIT_REQUEST);
+               connection.putString(searchID);
+               connection.putString(location.name);
+               connection.putString(location.peer);
+               connection.putLong(location.port);
+               connection.putLong(location.size);
+               connection.send();
+
+               // A negative answer means the search has ended.
+               connection.receive(SOCKET_TIME_OUT);
+               connection.getByte();
+            }
+
+            utils.releaseConnection(connection);
+            connection = null;
+         }
+         catch (Exception e) {
+            String msgString = new String("Error relaying hit for " +
+                                          route.searchType + " " + route.searchFile + " to " +
+                                          route.host + ":" + route.port + ": " + e.toString());
+            Log.getLog().logWarning(msgString);
+         }
+         finally {
+            if (connection != null)
+            {
+               utils.closeConnection(connection);
+            }
+         }
+      }
+   }
+
+   // Pass walker on to a neighbour, other than the peer it came from
+   // if there is another.
+   class WalkTask implements Runnable {
+      Walk            walk;
+      P2P.PeerList    peers;
+      P2P.PeerAddress next;
+      String          host;
+      int             port;
+
+      WalkTask(Walk walk, P2P.PeerList peers, P2P.PeerAddress next,
+               String host, int port)
+      {
+         this.walk  = walk;
+         this.peers = peers;
+         this.next  = next;
+         this.host  = host;
+         this.port  = port;
+      }
+
+
+      public void run()
+      {
+         P2P p2p = controls.p2p;
+
+         // Check back with the peer that started the search.
+         if ((host != null) && ((walk.ttl % WALK_CHECK_HOPS) == 0) &&
+             !check())
+         {
+            return;
+         }
+
+         Vector candidates;
+
+         if (peers != null)
+         {
+            candidates = new Vector(peers);
+         }
+         else
+         {
+            candidates = new Vector(p2p.connectedPeers.copy());
+         }
+
+         if (candidates.size() > 1)
+         {
+            for (int i = 0; i < candidates.size(); i++)
+            {
+               P2P.PeerAddress peerAddress = (P2P.PeerAddress)candidates.get(i);
+
+               if (peerAddress.host.equals(host) && (peerAddress.port == port))
+               {
+                  candidates.remove(i);
+
+                  break;
+               }
+            }
+         }
+
+         // Try neighbours at random until one takes the walker.
+         while (candidates.size() > 0)
+         {
+            P2P.PeerAddress peerAddress = next;
+
+            if ((peerAddress == null) || !candidates.remove(peerAddress))
+            {
+               peerAddress = (P2P.PeerAddress)candidates.remove(
+                  controls.random.nextInt(candidates.size()));
+            }
+
+            next = null;
+
+            if (send(peerAddress))
+            {
+               return;
+            }
+         }
+      }
+
+
+      // Send walker to peer.
+      // Return false if the peer does not take it.
+      boolean send(P2P.PeerAddress peerAddress)
+      {
+         Utils          utils      = controls.utils;
+         int            localPort  = controls.p2p.localPort;
+         PeerConnection connection = null;
+         boolean        taken      = false;
+
+         try {
+            connection = utils.openConnection(peerAddress.host, peerAddress.port,
+                                              localPort);
+
+            if (connection.framed)
+            {
+               connection.startRequest(localPort, WALK_REQUEST);
+               connection.putString(walk.searchFile);
+               connection.putString(walk.searchType);
+               connection.putString(walk.searchCode);
+               connection.putString(walk.searchID);
+               connection.putString(walk.origin);
+               connection.putLong(walk.originPort);
+               connection.putLong(walk.ttl);
+               connection.send();
+               connection.receive(SOCKET_TIME_OUT);
+               taken = (connection.getByte() == POSITIVE_RESPONSE);
+            }
+
+            utils.releaseConnection(connection);
+            connection = null;
+         }
+         catch (Exception e) {
+            String msgString = new String("Error passing walker for " +
+                                          walk.searchType + " " + walk.searchFile + " to " +
+                                          peerAddress.host + ":" + peerAddress.port + ": " +
+                                          e.toString());
+            Log.getLog().logWarning(msgString);
+         }
+         finally {
+            if (connection != null)
+            {
+               utils.closeConnection(connection);
+            }
+         }
+
+         return(taken);
+      }
+
+
+      // Is the search still running at the peer that started it?
+      boolean check()
+      {
+         Utils          utils      = controls.utils;
+         int            localPort  = controls.p2p.localPort;
+         PeerConnection connection = null;
+         boolean        running    = false;
+
+         try {
+            connection = utils.openConnection(walk.origin, walk.originPort,
+                                              localPort);
+
+            if (connection.framed)
+            {
+               connection.startRequest(localPort, CHECK_REQUEST);
+               connection.putString(walk.searchID);
+               connection.send();
+               connection.receive(SOCKET_TIME_OUT);
+               running = (connection.getByte() == POSITIVE_RESPONSE);
+            }
+
+            utils.releaseConnection(connection);
+            connection = null;
+         }
+         catch (Exception e) {
+            String msgString = new String("Error checking search for " +
+                                          walk.searchType + " " + walk.searchFile + " with " +
+                                          walk.origin + ":" + walk.originPort + ": " + e.toString());
+            Log.getLog().logWarning(msgString);
+         }
+         finally {
+            if (connection != null)
+            {
+               utils.closeConnection(connection);
+            }
+         }
+
+         return(running);
+      }
+   }
+
+   // Sender thread factory.
+   class SenderFactory implements ThreadFactory {
+      public Thread newThread(Runnable task)
+      {
+         Thread thread = new Thread(task, "Spores search relay");
+
+         thread.setDaemon(true);
+
+         return(thread);
+      }
+   }
+}
@@ -0,0 +1,133 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.util.*;
+
+
+/**
+ * Table of search IDs seen, so a search reaching this peer again over
+ * another path is not searched twice.
+ * <p>
+ * IDs are kept for SEARCH_ID_TIME, the longest a search can last, on a
+ * timing wheel: a ring of SEARCH_ID_SLOTS slots, each holding the IDs
+ * added in one slot's time. As time passes the wheel turns and the
+ * slot it reaches is emptied, so expiry costs nothing per lookup. If
+ * MAX_SEARCH_IDS are held, the oldest are dropped early.
+ */
+public class SearchTable implements Parameters {
+   // IDs by time slot, and all IDs held.
+   LinkedList[] slots;
+   Hashtable    ids;
+
+   // Current slot, and when its time started.
+   int  current;
+   long slotStart;
+
+   // Slot time (ms).
+   long slotTime;
+
+   // Constructor.
+   public SearchTable()
+   {
+      slots = new LinkedList[SEARCH_ID_SLOTS];
+
+      for (int i = 0; i < slots.length; i++)
+      {
+         slots[i] = new LinkedList();
+      }
+
+      ids       = new Hashtable();
+      current   = 0;
+      slotStart = System.currentTimeMillis();
+      slotTime  = (SEARCH_ID_TIME + SEARCH_ID_SLOTS - 1) / SEARCH_ID_SLOTS;
+   }
+
+
+   // Add search ID.
+   // Return false if it has been seen.
+   synchronized boolean add(String searchID)
+   {
+      turn();
+
+      if (ids.get(searchID) != null)
+      {
+         return(false);
+      }
+
+      while (ids.size() >= MAX_SEARCH_IDS)
+      {
+         expireOldest();
+      }
+
+      slots[current].add(searchID);
+      ids.put(searchID, Boolean.TRUE);
+
+      return(true);
+   }
+
+
+   // Has search ID been seen?
+   synchronized boolean contains(String searchID)
+   {
+      turn();
+
+      return(ids.get(searchID) != null);
+   }
+
+
+   // Turn wheel to current time, emptying slots it reaches.
+   private void turn()
+   {
+      long turns = (System.currentTimeMillis() - slotStart) / slotTime;
+
+      if (turns <= 0)
+      {
+         return;
+      }
+
+      slotStart += turns * slotTime;
+
+      for (long i = 0; (i < turns) && (i < slots.length); i++)
+      {
+         current = (current + 1) % slots.length;
+         expire(current);
+      }
+   }
+
+
+   // Drop the oldest ID.
+   private void expireOldest()
+   {
+      for (int i = 1; i <= slots.length; i++)
+      {
+         LinkedList slot = slots[(current + i) % slots.length];
+
+         if (slot.size() > 0)
+         {
+            ids.remove(slot.removeFirst());
+
+            return;
+         }
+      }
+   }
+
+
+   // Empty slot.
+   private void expire(int slot)
+   {
+      LinkedList expired = slots[slot];
+
+      for (int i = 0, j = expired.size(); i < j; i++)
+      {
+         ids.remove(expired.removeFirst());
+      }
+   }
+}
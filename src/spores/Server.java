@@ -13,11 +13,24 @@ import java.io.*;
 
 import java.net.*;
 
+import java.nio.*;
+import java.nio.channels.*;
+
 import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
  * Server.
+ * <p>
+ * In blocking mode a peer server thread is started for each accepted
+ * connection. In selector mode a single selector thread reads request
+ * headers without blocking, answers peer and confirmation requests
+ * itself, and passes searches and transfers to a bounded worker pool.
+ * <p>
+ * A client sending the keep-alive option on its version line may send
+ * further requests on the same connection, one at a time, until either
+ * side closes it or it is idle for KEEP_ALIVE_TIME_OUT.
  */
 public class Server extends Thread implements Parameters {
    private Controls     controls;
@@ -26,6 +39,17 @@ public class Server extends Thread implements Parameters {
    private Utils        utils;
    private ServerSocket socket;
 
+   // Selector mode channel, selector and request workers.
+   private ServerSocketChannel serverChannel;
+   private Selector            selector;
+   private ThreadPoolExecutor  workers;
+
+   // Keep-alive connections returned by workers.
+   private LinkedList resumed;
+
+   // Server mode.
+   int mode;
+
    // Constructor.
    public Server(Controls controls)
    {
@@ -33,12 +57,22 @@ public class Server extends Thread implements Parameters {
       p2p           = controls.p2p;
       transfer      = controls.transfer;
       utils         = controls.utils;
+      mode          = getServerMode();
+      resumed       = new LinkedList();
 
       // Create the server socket.
-      socket = null;
+      socket        = null;
+      serverChannel = null;
 
       try {
-         socket = utils.createServerSocket(p2p.localPort);
+         if (mode == SELECTOR_SERVER)
+         {
+            serverChannel = utils.createServerSocketChannel(p2p.localPort);
+         }
+         else
+         {
+            socket = utils.createServerSocket(p2p.localPort);
+         }
       }
       catch (Exception e) {
          String msgString = new String("Cannot create server socket: " +
@@ -55,11 +89,59 @@ public class Server extends Thread implements Parameters {
    }
 
 
+   // Get server mode from system property.
+   static int getServerMode()
+   {
+      String s = System.getProperty(SERVER_MODE_PROPERTY);
+
+      if (s == null)
+      {
+         return(DEFAULT_SERVER_MODE);
+      }
+
+      if (s.equalsIgnoreCase("blocking"))
+      {
+         return(BLOCKING_SERVER);
+      }
+
+      if (s.equalsIgnoreCase("selector"))
+      {
+         return(SELECTOR_SERVER);
+      }
+
+      return(DEFAULT_SERVER_MODE);
+   }
+
+
+   // Does request version line carry the given option?
+   static boolean hasOption(String version, String option)
+   {
+      StringTokenizer options = new StringTokenizer(version);
+
+      while (options.hasMoreTokens())
+      {
+         if (options.nextToken().equals(option))
+         {
+            return(true);
+         }
+      }
+
+      return(false);
+   }
+
+
    /**
     * Server main loop.
     */
    public void run()
    {
+      if (mode == SELECTOR_SERVER)
+      {
+         runSelector();
+
+         return;
+      }
+
       try {
          while ((Thread.currentThread() == this) && (socket != null) &&
                 !isInterrupted())
@@ -90,130 +172,972 @@ public class Server extends Thread implements Parameters {
 
 
    /**
-    * Peer server.
+    * Selector server loop.
     */
-   class PeerServer extends Thread implements Parameters {
-      Socket peerSocket;
-      String peerHost;
-      int    peerPort;
+   private void runSelector()
+   {
+      SelectionKey key;
+      Connection   connection;
+      Iterator     keys;
+      LinkedList   handoffs = new LinkedList();
 
-      // Constructor.
-      PeerServer(Socket peerSocket)
+      if ((Thread.currentThread() != this) || (serverChannel == null))
       {
-         this.peerSocket = peerSocket;
-         peerHost        = utils.getRemoteAddress(peerSocket);
+         return;
       }
 
+      try {
+         selector = Selector.open();
+         serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+         workers = new ThreadPoolExecutor(MAX_SERVER_WORKERS,
+                                          MAX_SERVER_WORKERS, SOCKET_TIME_OUT,
+                                          TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue(MAX_SERVER_QUEUE),
+                                          new WorkerFactory());
+         workers.allowCoreThreadTimeOut(true);
+
+         while ((Thread.currentThread() == this) && !isInterrupted())
+         {
+            selector.select(SELECT_FREQ);
+            resumeConnections(handoffs);
+            keys = selector.selectedKeys().iterator();
 
-      // Talk to client peer.
-      public void run()
-      {
-         boolean validRequest;
-         int     size;
+            while (keys.hasNext())
+            {
+               key = (SelectionKey)keys.next();
+               keys.remove();
 
-         if (Thread.currentThread() != this)
-         {
-            return;
-         }
+               if (!key.isValid())
+               {
+                  continue;
+               }
 
-         // Get request.
-         try {
-            DataInputStream in      = utils.getDataInputStream(peerSocket);
-            String          version = utils.readLineFromStream(in);
-            String          s       = utils.readLineFromStream(in);
-            peerPort = SPORES_PORT;
+               if (key.isAcceptable())
+               {
+                  accept();
 
-            try {
-               peerPort = Integer.parseInt(s);
-            }
-            catch (NumberFormatException e) {
+                  continue;
+               }
+
+               connection = (Connection)key.attachment();
+
+               try {
+                  if (key.isReadable())
+                  {
+                     if (connection.read())
+                     {
+                        handoffs.add(connection);
+                     }
+                  }
+                  else if (key.isWritable())
+                  {
+                     connection.write();
+                  }
+               }
+               catch (IOException e) {
+                  String msgString = new String(
+                     "Error receiving request from peer " +
+                     connection.peerHost + ": " + e.toString());
+                  Log.getLog().logWarning(msgString);
+                  controls.statusText.setText(msgString);
+                  connection.close();
+               }
             }
 
-            String request = utils.readLineFromStream(in);
-            validRequest = true;
-            if (request.startsWith(PEER_REQUEST))
+            // Pass long-running requests to workers.
+            // Cancelled keys must be flushed before blocking the channels.
+            if (handoffs.size() > 0)
             {
-               peerRequest();
+               selector.selectNow();
+
+               while (handoffs.size() > 0)
+               {
+                  dispatch((Connection)handoffs.removeFirst());
+               }
             }
-            else if (request.startsWith(SEARCH_REQUEST))
+
+            expireConnections();
+         }
+      }
+      catch (IOException e) {
+         String msgString = new String("Server socket error: " +
+                                       e.toString());
+         Log.getLog().logWarning(msgString);
+         controls.statusText.setText(msgString);
+      }
+      finally {
+         if (selector != null)
+         {
+            keys = selector.keys().iterator();
+
+            while (keys.hasNext())
             {
-               searchRequest(in);
+               key = (SelectionKey)keys.next();
+
+               if (key.attachment() != null)
+               {
+                  ((Connection)key.attachment()).close();
+               }
             }
-            else if (request.startsWith(DOWNLOAD_REQUEST))
-            {
-               downloadRequest(in);
+
+            try {
+               selector.close();
             }
-            else if (request.startsWith(UPLOAD_REQUEST))
-            {
-               uploadRequest(in);
+            catch (Exception e) {
             }
-            else if (request.startsWith(CONFIRMATION_REQUEST))
-            {
-               confirmationRequest();
+         }
+
+         try {
+            serverChannel.close();
+         }
+         catch (Exception e) {
+         }
+
+         if (workers != null)
+         {
+            workers.shutdown();
+         }
+      }
+   }
+
+
+   // Accept selector connections.
+   private void accept() throws IOException
+   {
+      SocketChannel channel;
+
+      while ((channel = serverChannel.accept()) != null)
+      {
+         try {
+            channel.configureBlocking(false);
+
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector,
+                                              SelectionKey.OP_READ, connection);
+         }
+         catch (IOException e) {
+            try {
+               channel.close();
             }
-            else
-            {
-               validRequest = false;
+            catch (Exception e2) {
             }
+         }
+      }
+   }
 
-            if (validRequest)
-            {
-               // Add peer to connected list, possibly replacing
-               // random peer to keep list dynamically changing.
-               if (!(p2p.localHost.equals(peerHost) &&
-                     (p2p.localPort == peerPort)) &&
-                   !p2p.connectedPeers.isDuplicate(peerHost, peerPort))
-               {
-                  while ((size = p2p.connectedPeers.size()) >= MAX_CONNECTED_PEERS)
-                  {
-                     try {
-                        p2p.connectedPeers.remove(controls.random.nextInt(
-                                                     size));
-                     }
-                     catch (IndexOutOfBoundsException e) {
-                     }
-                  }
 
-                  p2p.connectedPeers.addPeer(peerHost, peerPort);
-                  p2p.refreshConnections();
-               }
+   // Pass a connection with a complete request header to a worker.
+   private void dispatch(Connection connection)
+   {
+      try {
+         connection.channel.configureBlocking(true);
+
+         PeerConnection peerConnection = new PeerConnection(utils,
+                                                            connection.channel.socket());
+         peerConnection.framed = connection.framed;
+         peerConnection.loadRequest(connection.header.array(),
+                                    connection.header.position());
+         workers.execute(new WorkerTask(new PeerServer(peerConnection),
+                                        connection));
+      }
+      catch (RejectedExecutionException e) {
+         String msgString = new String("Server busy: dropping " +
+                                       connection.request + " from " +
+                                       connection.peerHost);
+         Log.getLog().logWarning(msgString);
+         controls.statusText.setText(msgString);
+         connection.close();
+      }
+      catch (IOException e) {
+         String msgString = new String(
+            "Error receiving request from peer " + connection.peerHost +
+            ": " + e.toString());
+         Log.getLog().logWarning(msgString);
+         controls.statusText.setText(msgString);
+         connection.close();
+      }
+   }
+
+
+   // Return keep-alive connection from worker to selector.
+   private void resume(Connection connection)
+   {
+      synchronized (resumed) {
+         resumed.add(connection);
+      }
+
+      selector.wakeup();
+   }
+
+
+   // Register resumed connections to read their next request.
+   private void resumeConnections(LinkedList handoffs)
+   {
+      Connection connection;
+
+      while (true)
+      {
+         synchronized (resumed) {
+            if (resumed.size() == 0)
+            {
+               break;
             }
-            else
+
+            connection = (Connection)resumed.removeFirst();
+         }
+
+         try {
+            connection.channel.configureBlocking(false);
+            connection.key = connection.channel.register(selector,
+                                                         SelectionKey.OP_READ, connection);
+
+            // Scan data already read for next request.
+            if ((connection.header.position() > 0) && connection.scan(0))
             {
-               String msgString = new String("Invalid request " + request +
-                                             " from " + peerHost);
-               Log.getLog().logWarning(msgString);
-               controls.statusText.setText(msgString);
+               handoffs.add(connection);
             }
          }
-         catch (InterruptedIOException e) {
-            String msgString = new String("Time-out serving peer " +
-                                          peerHost);
+         catch (IOException e) {
+            String msgString = new String(
+               "Error receiving request from peer " +
+               connection.peerHost + ": " + e.toString());
             Log.getLog().logWarning(msgString);
             controls.statusText.setText(msgString);
+            connection.close();
          }
-         catch (IOException e) {
-            String msgString = new String(
-               "Error receiving request from peer " + peerHost + ": " +
-               e.toString());
+      }
+   }
+
+
+   // Close selector connections that have not completed in time.
+   private void expireConnections()
+   {
+      SelectionKey key;
+      Connection   connection;
+      long         now = System.currentTimeMillis();
+
+      Iterator keys = selector.keys().iterator();
+
+      while (keys.hasNext())
+      {
+         key        = (SelectionKey)keys.next();
+         connection = (Connection)key.attachment();
+
+         if ((connection != null) && connection.isIdle())
+         {
+            if ((now - connection.startTime) > KEEP_ALIVE_TIME_OUT)
+            {
+               connection.close();
+            }
+         }
+         else if ((connection != null) &&
+                  ((now - connection.startTime) > SOCKET_TIME_OUT))
+         {
+            String msgString = new String("Time-out serving peer " +
+                                          connection.peerHost);
             Log.getLog().logWarning(msgString);
             controls.statusText.setText(msgString);
+            connection.close();
          }
-         finally {
+      }
+   }
+
+
+   // Put list of connected peers to send to peer:
+   // peer count followed by addresses.
+   void putPeerList(Message message)
+   {
+      P2P.PeerAddress address;
+      LinkedList      addresses = new LinkedList();
+
+      for (int i = 0;
+           (i < p2p.connectedPeers.size()) &&
+           (addresses.size() < MAX_TRANSMITTED_PEERS); i++)
+      {
+         try {
+            address = (P2P.PeerAddress)p2p.connectedPeers.get(i);
+            addresses.add(address.host + ":" + address.port);
+         }
+         catch (IndexOutOfBoundsException e) {
+         }
+      }
+
+      message.putLong(addresses.size());
+
+      for (int i = 0; i < addresses.size(); i++)
+      {
+         message.putString((String)addresses.get(i));
+      }
+   }
+
+
+   // Add requesting peer to connected list, possibly replacing
+   // random peer to keep list dynamically changing.
+   void addConnectedPeer(String peerHost, int peerPort)
+   {
+      int size;
+
+      if (!(p2p.localHost.equals(peerHost) &&
+            (p2p.localPort == peerPort)) &&
+          !p2p.connectedPeers.isDuplicate(peerHost, peerPort))
+      {
+         while ((size = p2p.connectedPeers.size()) >= MAX_CONNECTED_PEERS)
+         {
             try {
-               if (peerSocket != null)
-               {
-                  utils.closeSocket(peerSocket);
-               }
+               p2p.connectedPeers.remove(controls.random.nextInt(size));
             }
-            catch (Exception e) {
-               String msgString = new String(
-                  "Error closing socket to peer " + peerHost + ": " +
-                  e.toString());
+            catch (IndexOutOfBoundsException e) {
+            }
+         }
+
+         p2p.connectedPeers.addPeer(peerHost, peerPort);
+         p2p.refreshConnections();
+      }
+   }
+
+
+   /**
+    * Selector mode connection.
+    * Accumulates the request header, then either replies
+    * directly or is passed to a worker.
+    */
+   class Connection {
+      SocketChannel channel;
+      SelectionKey  key;
+      String        peerHost;
+      int           peerPort;
+      long          startTime;
+      ByteBuffer    header;
+      ByteBuffer    reply;
+      Message       message;
+      String        request;
+      int           lineCount;
+      int           lineStart;
+      int           headerLines;
+      boolean       keepAlive;
+      boolean       framedOption;
+      boolean       framed;
+      int           served;
+
+      // Constructor.
+      Connection(SocketChannel channel)
+      {
+         this.channel = channel;
+         peerHost     = utils.getRemoteAddress(channel.socket());
+         peerPort     = SPORES_PORT;
+         startTime    = System.currentTimeMillis();
+         header       = ByteBuffer.allocate(MAX_HEADER_SIZE);
+         reply        = null;
+         message      = new Message();
+         request      = null;
+         lineCount    = 0;
+         lineStart    = 0;
+         headerLines  = -1;
+         keepAlive    = false;
+         framedOption = false;
+         framed       = false;
+         served       = 0;
+      }
+
+
+      // Prepare to read next request on keep-alive connection.
+      void reset()
+      {
+         startTime    = System.currentTimeMillis();
+         header.clear();
+         reply        = null;
+         request      = null;
+         lineCount    = 0;
+         lineStart    = 0;
+         headerLines  = -1;
+         keepAlive    = framed;
+         framedOption = false;
+         served++;
+      }
+
+
+      // Waiting for a further request on keep-alive connection?
+      boolean isIdle()
+      {
+         return((served > 0) && (header.position() == 0));
+      }
+
+
+      // Read available header bytes.
+      // Return true if request must be passed to a worker.
+      boolean read() throws IOException
+      {
+         int start = header.position();
+
+         if (channel.read(header) == -1)
+         {
+            if (isIdle())
+            {
+               close();
+
+               return(false);
+            }
+
+            throw new EOFException("Connection closed");
+         }
+
+         return(scan(start));
+      }
+
+
+      // Scan header bytes from start.
+      // Return true if request must be passed to a worker.
+      boolean scan(int start) throws IOException
+      {
+         if (framed)
+         {
+            return(readFrame());
+         }
+
+         // Scan for header lines.
+         byte[] data = header.array();
+
+         for (int i = start; i < header.position(); i++)
+         {
+            if (data[i] != (byte)'\n')
+            {
+               continue;
+            }
+
+            String line = new String(data, lineStart, i - lineStart).trim();
+            lineStart = i + 1;
+            lineCount++;
+
+            switch (lineCount)
+            {
+            case 1:
+               keepAlive    = hasOption(line, KEEP_ALIVE);
+               framedOption = hasOption(line, FRAMED);
+               break;
+
+            case 2:
+               try {
+                  peerPort = Integer.parseInt(line);
+               }
+               catch (NumberFormatException e) {
+               }
+
+               break;
+
+            case 3:
+               request     = line;
+               headerLines = getHeaderLines(request);
+
+               if (headerLines == -1)
+               {
+                  invalid();
+
+                  return(false);
+               }
+
+               break;
+            }
+
+            if (lineCount == headerLines)
+            {
+               return(complete());
+            }
+         }
+
+         if (((header.position() - lineStart) >= MAX_LINE_SIZE) ||
+             !header.hasRemaining())
+         {
+            throw new IOException("Request header too long");
+         }
+
+         return(false);
+      }
+
+
+      // Check for complete framed request.
+      boolean readFrame() throws IOException
+      {
+         if (header.position() < 4)
+         {
+            return(false);
+         }
+
+         int length = Message.getFrameLength(header.array(), 0);
+
+         if ((length < 0) || ((length + 4) > header.capacity()))
+         {
+            throw new IOException("Request header too long");
+         }
+
+         if (header.position() < (length + 4))
+         {
+            return(false);
+         }
+
+         message.load(header.array(), 0, length + 4, Message.FRAMED_MESSAGE);
+         peerPort = (int)message.getLong();
+         request  = message.getString();
+
+         if (getHeaderLines(request) == -1)
+         {
+            invalid();
+
+            return(false);
+         }
+
+         return(complete());
+      }
+
+
+      // Carry over data for the next request read ahead by a worker.
+      // Return false if there is too much.
+      boolean carry(DataInputStream in) throws IOException
+      {
+         int n = in.available();
+
+         if (n > header.remaining())
+         {
+            return(false);
+         }
+
+         in.readFully(header.array(), header.position(), n);
+         header.position(header.position() + n);
+
+         return(true);
+      }
+
+
+      // Invalid request.
+      void invalid()
+      {
+         String msgString = new String("Invalid request " +
+                                       request + " from " + peerHost);
+         Log.getLog().logWarning(msgString);
+         controls.statusText.setText(msgString);
+         close();
+      }
+
+
+      // Request header complete: reply directly or hand off.
+      boolean complete() throws IOException
+      {
+         if (framed)
+         {
+            message.clear(Message.FRAMED_MESSAGE);
+         }
+         else
+         {
+            message.clear(Message.TEXT_MESSAGE);
+         }
+
+         if (request.startsWith(PEER_REQUEST))
+         {
+            putPeerList(message);
+         }
+         else if (request.startsWith(CONFIRMATION_REQUEST))
+         {
+            // Switch to framed messages if requested.
+            if (!framed && framedOption)
+            {
+               message.putByte(FRAMED_RESPONSE);
+               framed    = true;
+               keepAlive = true;
+            }
+            else
+            {
+               message.putByte(POSITIVE_RESPONSE);
+            }
+         }
+         else
+         {
+            key.cancel();
+
+            return(true);
+         }
+
+         message.finish();
+         reply = ByteBuffer.wrap(message.data, 0, message.size);
+         key.interestOps(SelectionKey.OP_WRITE);
+         write();
+
+         return(false);
+      }
+
+
+      // Write reply.
+      void write() throws IOException
+      {
+         channel.write(reply);
+
+         if (!reply.hasRemaining())
+         {
+            if (keepAlive)
+            {
+               reset();
+               key.interestOps(SelectionKey.OP_READ);
+            }
+            else
+            {
+               close();
+            }
+
+            addConnectedPeer(peerHost, peerPort);
+         }
+      }
+
+
+      // Close connection.
+      void close()
+      {
+         key.cancel();
+
+         try {
+            channel.close();
+         }
+         catch (Exception e) {
+         }
+      }
+   }
+
+
+   // Find shared file of given name, type and code, or null if none.
+   // Searching solely on code if name is "*".
+   LocationCache.Location findShared(String searchFile, String searchType,
+                                     String searchCode)
+   {
+      // Look up file in shared index.
+      SharedIndex    index    = controls.sharedFiles.index;
+      byte           type     = FILE;
+      Utils.FileElem fileElem;
+
+      if (searchType.equals("folder"))
+      {
+         type = FOLDER;
+      }
+
+      fileElem = index.find(searchFile, type, searchCode);
+
+      if (fileElem != null)
+      {
+         return(new LocationCache.Location(fileElem.name, p2p.localHost,
+                                           p2p.localPort, fileElem.size));
+      }
+
+      if (searchFile.equals("*"))
+      {
+         return(null);
+      }
+
+      // Check for file not yet indexed.
+      String fileName = controls.sharedFolder + File.separator + searchFile;
+      File   file     = new File(fileName);
+
+      if (file.exists() && file.canRead() &&
+          ((searchType.equals("file") && file.isFile()) ||
+           (searchType.equals("folder") && file.isDirectory())) &&
+          (searchCode.equals("") || index.matches(searchFile, searchCode)))
+      {
+         return(new LocationCache.Location(searchFile, p2p.localHost,
+                                           p2p.localPort, Utils.getFileSize(fileName)));
+      }
+
+      return(null);
+   }
+
+
+   // Number of header lines for request, -1 if invalid.
+   static int getHeaderLines(String request)
+   {
+      if (request.startsWith(PEER_REQUEST) ||
+          request.startsWith(CONFIRMATION_REQUEST))
+      {
+         return(3);
+      }
+
+      if (request.startsWith(FILTER_REQUEST))
+      {
+         return(4);
+      }
+
+      if (request.startsWith(QUERY_REQUEST))
+      {
+         return(10);
+      }
+
+      if (request.startsWith(HIT_REQUEST))
+      {
+         return(8);
+      }
+
+      if (request.startsWith(WALK_REQUEST))
+      {
+         return(10);
+      }
+
+      if (request.startsWith(CHECK_REQUEST))
+      {
+         return(4);
+      }
+
+      if (request.startsWith(SEARCH_REQUEST))
+      {
+         return(9);
+      }
+
+      if (request.startsWith(DOWNLOAD_REQUEST))
+      {
+         return(6);
+      }
+
+      if (request.startsWith(RANGE_REQUEST))
+      {
+         return(7);
+      }
+
+      if (request.startsWith(UPLOAD_REQUEST) ||
+          request.startsWith(TREE_REQUEST))
+      {
+         return(5);
+      }
+
+      return(-1);
+   }
+
+
+   // Worker task.
+   class WorkerTask implements Runnable {
+      PeerServer peerServer;
+      Connection connection;
+
+      WorkerTask(PeerServer peerServer, Connection connection)
+      {
+         this.peerServer = peerServer;
+         this.connection = connection;
+      }
+
+
+      public void run()
+      {
+         boolean keep = peerServer.serve();
+
+         if (keep)
+         {
+            connection.framed = peerServer.connection.framed;
+            connection.reset();
+
+            try {
+               keep = connection.carry(peerServer.connection.in);
+            }
+            catch (IOException e) {
+               keep = false;
+            }
+         }
+
+         if (keep)
+         {
+            resume(connection);
+         }
+         else
+         {
+            connection.close();
+         }
+      }
+   }
+
+   // Worker thread factory.
+   class WorkerFactory implements ThreadFactory {
+      public Thread newThread(Runnable task)
+      {
+         Thread thread = new Thread(task, "Spores server worker");
+
+         thread.setDaemon(true);
+
+         return(thread);
+      }
+   }
+
+   /**
+    * Peer server.
+    */
+   class PeerServer extends Thread implements Parameters {
+      Socket         peerSocket;
+      PeerConnection connection;
+      String         peerHost;
+      int            peerPort;
+      String         version;
+      boolean        keepAlive;
+
+      // Constructor.
+      PeerServer(Socket peerSocket)
+      {
+         this.peerSocket = peerSocket;
+         connection      = null;
+         peerHost        = utils.getRemoteAddress(peerSocket);
+      }
+
+
+      // Constructor for request already read by selector.
+      PeerServer(PeerConnection connection)
+      {
+         this.connection = connection;
+         peerSocket      = connection.socket;
+         peerHost        = connection.host;
+      }
+
+
+      // Talk to client peer.
+      public void run()
+      {
+         if (Thread.currentThread() != this)
+         {
+            return;
+         }
+
+         try {
+            connection = new PeerConnection(utils, peerSocket);
+            connection.receiveRequest(false);
+
+            while (serve() && connection.receiveRequest(true))
+            {
+            }
+         }
+         catch (InterruptedIOException e) {
+            String msgString = new String("Time-out serving peer " +
+                                          peerHost);
+            Log.getLog().logWarning(msgString);
+            controls.statusText.setText(msgString);
+         }
+         catch (IOException e) {
+            String msgString = new String(
+               "Error receiving request from peer " + peerHost + ": " +
+               e.toString());
+            Log.getLog().logWarning(msgString);
+            controls.statusText.setText(msgString);
+         }
+         finally {
+            try {
+               if (peerSocket != null)
+               {
+                  utils.closeSocket(peerSocket);
+               }
+            }
+            catch (Exception e) {
+               String msgString = new String(
+                  "Error closing socket to peer " + peerHost + ": " +
+                  e.toString());
+               Log.getLog().logWarning(msgString);
+               controls.statusText.setText(msgString);
+            }
+         }
+      }
+
+
+      // Serve request received on connection.
+      // Return true if the connection may be kept for a further request.
+      boolean serve()
+      {
+         boolean validRequest = false;
+
+         // Get request.
+         try {
+            peerPort = SPORES_PORT;
+
+            if (connection.framed)
+            {
+               version   = null;
+               keepAlive = true;
+               peerPort  = (int)connection.getLong();
+            }
+            else
+            {
+               version   = connection.getString();
+               keepAlive = hasOption(version, KEEP_ALIVE);
+
+               try {
+                  peerPort = (int)connection.getLong();
+               }
+               catch (NumberFormatException e) {
+               }
+            }
+
+            String request = connection.getString();
+            validRequest = true;
+            if (request.startsWith(PEER_REQUEST))
+            {
+               peerRequest();
+            }
+            else if (request.startsWith(SEARCH_REQUEST))
+            {
+               searchRequest();
+            }
+            else if (request.startsWith(DOWNLOAD_REQUEST))
+            {
+               downloadRequest();
+            }
+            else if (request.startsWith(RANGE_REQUEST))
+            {
+               rangeRequest();
+            }
+            else if (request.startsWith(TREE_REQUEST))
+            {
+               treeRequest();
+            }
+            else if (request.startsWith(FILTER_REQUEST))
+            {
+               filterRequest();
+            }
+            else if (request.startsWith(QUERY_REQUEST))
+            {
+               queryRequest();
+            }
+            else if (request.startsWith(HIT_REQUEST))
+            {
+               hitRequest();
+            }
+            else if (request.startsWith(WALK_REQUEST))
+            {
+               walkRequest();
+            }
+            else if (request.startsWith(CHECK_REQUEST))
+            {
+               checkRequest();
+            }
+            else if (request.startsWith(UPLOAD_REQUEST))
+            {
+               uploadRequest();
+            }
+            else if (request.startsWith(CONFIRMATION_REQUEST))
+            {
+               confirmationRequest();
+            }
+            else
+            {
+               validRequest = false;
+            }
+
+            if (validRequest)
+            {
+               addConnectedPeer(peerHost, peerPort);
+            }
+            else
+            {
+               String msgString = new String("Invalid request " + request +
+                                             " from " + peerHost);
                Log.getLog().logWarning(msgString);
                controls.statusText.setText(msgString);
             }
          }
+         catch (IOException e) {
+            validRequest = false;
+
+            String msgString = new String(
+               "Error receiving request from peer " + peerHost + ": " +
+               e.toString());
+            Log.getLog().logWarning(msgString);
+            controls.statusText.setText(msgString);
+         }
+
+         return(validRequest && keepAlive);
       }
 
 
@@ -222,33 +1146,14 @@ public class Server extends Thread implements Parameters {
        */
       void peerRequest()
       {
-         P2P.PeerAddress address;
-
          try {
-            DataOutputStream out       = utils.getDataOutputStream(peerSocket);
-            String           peerList  = "";
-            long             peerCount = 0;
-
-            for (int i = 0;
-                 (i < p2p.connectedPeers.size()) &&
-                 (peerCount < MAX_TRANSMITTED_PEERS); i++)
-            {
-               try {
-                  address  = (P2P.PeerAddress)p2p.connectedPeers.get(i);
-                  peerList = peerList.concat(address.host + ":" +
-                                             address.port + "\n");
-                  peerCount++;
-               }
-               catch (IndexOutOfBoundsException e) {
-               }
-            }
-
-            utils.writeLongToStream(out, peerCount);
-
-            byte[] data = peerList.getBytes();
-            utils.writeBytesToStream(out, data, data.length);
+            connection.startMessage();
+            putPeerList(connection.output);
+            connection.send();
          }
          catch (IOException e) {
+            keepAlive = false;
+
             String msgString = new String(
                "Server error sending peers to peer " + peerHost +
                ": " + e.toString());
@@ -261,18 +1166,21 @@ public class Server extends Thread implements Parameters {
       /**
        * Search for file.
        */
-      void searchRequest(DataInputStream in)
+      void searchRequest()
       {
          byte    response    = NEGATIVE_RESPONSE;
          String  searchFile  = null;
          String  searchType  = null;
          String  searchCode  = null;
          long    searchDepth = 0;
+         long    searchTime  = SEARCH_TIME_OUT;
+         long    searchStart = System.currentTimeMillis();
          long    copies      = -1;
          long    copiesFound = 0;
          long    searchCopies;
          String  searchID    = null;
          boolean firstSearch = false;
+         boolean timed       = false;
 
          P2P.PeerList            connectedPeers;
          P2P.PeerAddress         peerAddress;
@@ -284,37 +1192,32 @@ public class Server extends Thread implements Parameters {
          long   targetSize = 0;
 
          try {
-            DataOutputStream out = utils.getDataOutputStream(peerSocket);
-
             if (controls.sharingEnabled)
             {
-               searchFile = utils.readLineFromStream(in);
+               searchFile = connection.getString();
 
                if (!searchFile.equals("") &&
                    (searchFile.indexOf(File.separator) == -1))
                {
-                  searchType = utils.readLineFromStream(in);
+                  searchType = connection.getString();
 
                   if (searchType.equals("file") ||
                       searchType.equals("folder"))
                   {
-                     searchCode = utils.readLineFromStream(in);
-                     searchID   = utils.readLineFromStream(in);
-
-                     String s = utils.readLineFromStream(in);
-                     copies = 0;
+                     searchCode = connection.getString();
+                     searchID   = connection.getString();
+                     copies     = 0;
 
                      try {
-                        copies = Long.parseLong(s);
+                        copies = connection.getLong();
                      }
                      catch (NumberFormatException e) {
                      }
 
-                     s           = utils.readLineFromStream(in);
                      searchDepth = 0;
 
                      try {
-                        searchDepth = Long.parseLong(s);
+                        searchDepth = connection.getLong();
                      }
                      catch (NumberFormatException e) {
                      }
@@ -326,12 +1229,18 @@ public class Server extends Thread implements Parameters {
 
                      searchDepth--;
 
+                     // Time left to search, sent by framed peers.
+                     if (connection.hasField())
+                     {
+                        searchTime = Math.min(connection.getLong(),
+                                              SEARCH_TIME_OUT);
+                        timed      = true;
+                     }
+
                      // Prevent search looping by checking and storing
                      // search request ID.
-                     if (controls.searchCache.get(searchID) == null)
+                     if (controls.searchCache.add(searchID))
                      {
-                        controls.searchCache.put(searchID,
-                                                 new Boolean(true));
                         firstSearch = true;
                      }
                      else
@@ -341,74 +1250,25 @@ public class Server extends Thread implements Parameters {
 
                      if (firstSearch)
                      {
-                        // Searching solely on code?
-                        if (searchFile.equals("*") &&
-                            !searchCode.equals(""))
-                        {
-                           // Check all shared files for matching code.
-                           File dir = new File(controls.sharedFolder);
-                           String[] fileNames = dir.list();
+                        // Look up file here, or for a single copy,
+                        // where an earlier search found it.
+                        LocationCache.Location location = findShared(
+                           searchFile, searchType, searchCode);
 
-                           for (int i = 0; i < fileNames.length;
-                                i++)
-                           {
-                              String fileName = controls.sharedFolder +
-                                                File.separator + fileNames[i];
-                              File file = new File(fileName);
-
-                              if (file.exists() && file.canRead())
-                              {
-                                 if ((searchType.equals("file") &&
-                                      file.isFile()) ||
-                                     (searchType.equals("folder") &&
-                                      file.isDirectory()))
-                                 {
-                                    if (searchCode.equals(
-                                           Utils.getMD5ForFile(
-                                              fileName)))
-                                    {
-                                       // File found here.
-                                       response   = POSITIVE_RESPONSE;
-                                       targetName = file.getName();
-                                       targetPeer = p2p.localHost;
-                                       targetPort = p2p.localPort;
-                                       targetSize = Utils.getFileSize(fileName);
-                                       copiesFound++;
-
-                                       break;
-                                    }
-                                 }
-                              }
-                           }
-                        }
-                        else
+                        if ((location == null) && (copies == 1))
                         {
-                           String fileName = controls.sharedFolder +
-                                             File.separator + searchFile;
-                           File file = new File(fileName);
+                           location = controls.locationCache.get(searchFile,
+                                                                 searchType, searchCode);
+                        }
 
-                           if (file.exists() && file.canRead())
-                           {
-                              if ((searchType.equals("file") &&
-                                   file.isFile()) ||
-                                  (searchType.equals("folder") &&
-                                   file.isDirectory()))
-                              {
-                                 if (searchCode.equals("") ||
-                                     searchCode.equals(
-                                        Utils.getMD5ForFile(
-                                           fileName)))
-                                 {
-                                    // File found here.
-                                    response   = POSITIVE_RESPONSE;
-                                    targetName = searchFile;
-                                    targetPeer = p2p.localHost;
-                                    targetPort = p2p.localPort;
-                                    targetSize = Utils.getFileSize(fileName);
-                                    copiesFound++;
-                                 }
-                              }
-                           }
+                        if (location != null)
+                        {
+                           response   = POSITIVE_RESPONSE;
+                           targetName = location.name;
+                           targetPeer = location.peer;
+                           targetPort = location.port;
+                           targetSize = location.size;
+                           copiesFound++;
                         }
                      }
                   }
@@ -430,7 +1290,10 @@ public class Server extends Thread implements Parameters {
                }
             }
 
-            if ((searchDepth > 0) &&
+            // Search only with time left to relay the answer.
+            searchTime -= System.currentTimeMillis() - searchStart;
+
+            if ((searchDepth > 0) && (searchTime > SEARCH_HOP_TIME) &&
                 ((searchCopies == -1) || (searchCopies > 0)))
             {
                connectedPeers = p2p.connectedPeers.copy();
@@ -447,13 +1310,49 @@ public class Server extends Thread implements Parameters {
                   }
                }
 
-               peerSearch = new PeerSearch(utils, connectedPeers,
-                                           p2p.localPort, searchFile, searchType, searchCode,
-                                           searchID, searchCopies, searchDepth);
-               peerSearch.run();
+               // Forward the last hop only to peers that may have the file.
+               connectedPeers = p2p.getSearchPeers(connectedPeers, searchFile,
+                                                   searchType, searchCode, searchDepth);
+
+               // Share results of an outstanding search for the file,
+               // or search, letting others share these results.
+               // Searches without a time budget are not shared.
+               PendingSearches.Search search =
+                  new PendingSearches.Search(utils, searchCopies, searchDepth,
+                                             connectedPeers, searchTime);
+               PendingSearches.Search pending = null;
+
+               if (timed && search.timed)
+               {
+                  pending = controls.pendingSearches.join(searchFile,
+                                                          searchType, searchCode, search, peerHost);
+               }
+
+               if ((pending != null) && (pending != search))
+               {
+                  peerSearch = pending.getResults(searchTime);
+               }
+               else
+               {
+                  peerSearch = new PeerSearch(utils, connectedPeers,
+                                              p2p.localPort, searchFile, searchType, searchCode,
+                                              searchID, searchCopies, searchDepth, searchTime);
+
+                  try {
+                     peerSearch.run();
+                  }
+                  finally {
+                     if (pending == search)
+                     {
+                        controls.pendingSearches.finish(searchFile, searchType,
+                                                        searchCode, search, peerSearch);
+                     }
+                  }
+               }
 
                // Accumulate search results.
-               for (int i = 0; i < peerSearch.searchThreads.length; i++)
+               for (int i = 0; (peerSearch != null) &&
+                    (i < peerSearch.searchThreads.length); i++)
                {
                   searchResult = peerSearch.searchThreads[i];
 
@@ -464,69 +1363,71 @@ public class Server extends Thread implements Parameters {
                      // Accumulate copies found.
                      copiesFound += searchResult.copiesFound;
 
-                     // Save peer containing file.
+                     // Save peer containing file, and remember it
+                     // for repeated searches.
                      if (targetPeer == null)
                      {
                         targetName = searchResult.targetName;
                         targetPeer = searchResult.targetPeer;
                         targetPort = searchResult.targetPort;
                         targetSize = searchResult.targetSize;
+                        controls.locationCache.put(searchFile, searchType,
+                                                   searchCode, targetName, targetPeer, targetPort,
+                                                   targetSize);
                      }
                   }
                }
             }
 
             // Send response.
-            utils.writeByteToStream(out, response);
+            connection.startMessage();
+            connection.putByte(response);
 
             if (response == POSITIVE_RESPONSE)
             {
-               utils.writeLineToStream(out, targetName);
-               utils.writeLineToStream(out, targetPeer);
-               utils.writeLongToStream(out, targetPort);
-               utils.writeLongToStream(out, targetSize);
-               utils.writeLongToStream(out, copiesFound);
+               connection.putString(targetName);
+               connection.putString(targetPeer);
+               connection.putLong(targetPort);
+               connection.putLong(targetSize);
+               connection.putLong(copiesFound);
             }
+
+            connection.send();
          }
          catch (IOException e) {
+            keepAlive = false;
+
             String msgString = new String(
                "Server error sending search response to peer " +
                peerHost + ": " + e.toString());
             Log.getLog().logWarning(msgString);
             controls.statusText.setText(msgString);
          }
-
-         // If put search ID in cache, remove it.
-         if (firstSearch)
-         {
-            controls.searchCache.remove(searchID);
-         }
       }
 
 
       /**
        * Download file to peer.
        */
-      void downloadRequest(DataInputStream in)
+      void downloadRequest()
       {
          try {
-            DataOutputStream out      = utils.getDataOutputStream(peerSocket);
-            byte             response = NEGATIVE_RESPONSE;
-            String           fileName = null;
+            byte   response = NEGATIVE_RESPONSE;
+            String fileName = null;
 
             if (controls.sharingEnabled)
             {
-               fileName = utils.readLineFromStream(in);
+               fileName = connection.getString();
 
                if (!fileName.equals("") &&
                    (fileName.indexOf(File.separator) == -1))
                {
-                  String fileType = utils.readLineFromStream(in);
+                  String fileType = connection.getString();
 
                   if (fileType.equals("file") ||
                       fileType.equals("folder"))
                   {
-                     String searchCode = utils.readLineFromStream(in);
+                     String searchCode = connection.getString();
                      fileName = controls.sharedFolder + File.separator +
                                 fileName;
 
@@ -539,8 +1440,8 @@ public class Server extends Thread implements Parameters {
                              file.isDirectory()))
                         {
                            if (searchCode.equals("") ||
-                               searchCode.equals(
-                                  Utils.getMD5ForFile(fileName)))
+                               controls.sharedFiles.index.matches(
+                                  file.getName(), searchCode))
                            {
                               // Got file.
                               response = POSITIVE_RESPONSE;
@@ -551,16 +1452,20 @@ public class Server extends Thread implements Parameters {
                }
             }
 
-            utils.writeByteToStream(out, response);
+            connection.startMessage();
+            connection.putByte(response);
+            connection.send();
 
             if (response == POSITIVE_RESPONSE)
             {
-               transfer.putFile(out, fileName, null, null, null);
+               transfer.putFile(connection, fileName, null, null, null);
                Log.getLog().logInformation("Server downloaded file " +
                                            fileName);
             }
          }
          catch (IOException e) {
+            keepAlive = false;
+
             String msgString = new String(
                "Server error downloading to peer " + peerHost + ": " +
                e.toString());
@@ -570,23 +1475,387 @@ public class Server extends Thread implements Parameters {
       }
 
 
+      /**
+       * Download file range to peer.
+       */
+      void rangeRequest()
+      {
+         try {
+            byte   response = NEGATIVE_RESPONSE;
+            String fileName = null;
+            long   offset   = 0;
+            long   length   = 0;
+
+            if (controls.sharingEnabled)
+            {
+               fileName = connection.getString();
+               String searchCode = connection.getString();
+               offset = connection.getLong();
+               length = connection.getLong();
+
+               if (!fileName.equals("") &&
+                   (fileName.indexOf(File.separator) == -1))
+               {
+                  fileName = controls.sharedFolder + File.separator +
+                             fileName;
+
+                  File file = new File(fileName);
+
+                  if (file.exists() && file.canRead() && file.isFile() &&
+                      (offset >= 0) && (length >= 0) &&
+                      ((offset + length) <= file.length()))
+                  {
+                     if (searchCode.equals("") ||
+                         controls.sharedFiles.index.matches(file.getName(),
+                                                            searchCode))
+                     {
+                        // Got file.
+                        response = POSITIVE_RESPONSE;
+                     }
+                  }
+               }
+            }
+
+            connection.startMessage();
+            connection.putByte(response);
+            connection.send();
+
+            if (response == POSITIVE_RESPONSE)
+            {
+               transfer.putFileRange(connection, fileName, offset, length);
+               Log.getLog().logInformation("Server downloaded file " +
+                                           fileName + " range " + offset + "+" + length);
+            }
+         }
+         catch (IOException e) {
+            keepAlive = false;
+
+            String msgString = new String(
+               "Server error downloading range to peer " + peerHost + ": " +
+               e.toString());
+            Log.getLog().logWarning(msgString);
+            controls.statusText.setText(msgString);
+         }
+      }
+
+
+      /**
+       * Send file hash tree to peer.
+       */
+      void treeRequest()
+      {
+         try {
+            byte     response = NEGATIVE_RESPONSE;
+            HashTree tree     = null;
+
+            if (controls.sharingEnabled)
+            {
+               String fileName   = connection.getString();
+               String searchCode = connection.getString();
+
+               if (!fileName.equals("") &&
+                   (fileName.indexOf(File.separator) == -1))
+               {
+                  fileName = controls.sharedFolder + File.separator +
+                             fileName;
+
+                  File file = new File(fileName);
+
+                  if (file.exists() && file.canRead() && file.isFile() &&
+                      (searchCode.equals("") ||
+                       controls.sharedFiles.index.matches(file.getName(),
+                                                          searchCode)) &&
+                      ((tree = HashTree.getTree(fileName)) != null))
+                  {
+                     response = POSITIVE_RESPONSE;
+                  }
+               }
+            }
+
+            connection.startMessage();
+            connection.putByte(response);
+            connection.send();
+
+            if (response == POSITIVE_RESPONSE)
+            {
+               tree.put(connection);
+            }
+         }
+         catch (IOException e) {
+            keepAlive = false;
+
+            String msgString = new String(
+               "Server error sending hash tree to peer " + peerHost + ": " +
+               e.toString());
+            Log.getLog().logWarning(msgString);
+            controls.statusText.setText(msgString);
+         }
+      }
+
+
+      /**
+       * Relay search query: acknowledge it, then answer and forward it
+       * through the search relay.
+       */
+      void queryRequest()
+      {
+         try {
+            byte              response   = NEGATIVE_RESPONSE;
+            SearchRelay.Route route      = null;
+            String            searchFile = connection.getString();
+            String            searchType = connection.getString();
+            String            searchCode = connection.getString();
+            String            searchID   = connection.getString();
+            long              copies     = connection.getLong();
+            long              depth      = connection.getLong();
+            long              time       = Math.min(connection.getLong(),
+                                                    SEARCH_TIME_OUT);
+
+            if (depth > MAX_SEARCH_DEPTH)
+            {
+               depth = MAX_SEARCH_DEPTH;
+            }
+
+            depth--;
+
+            // Route query unless it has been seen here.
+            if (controls.sharingEnabled && !searchFile.equals("") &&
+                (searchFile.indexOf(File.separator) == -1) &&
+                (searchType.equals("file") || searchType.equals("folder")) &&
+                controls.searchCache.add(searchID))
+            {
+               route = new SearchRelay.Route(peerHost, peerPort, searchFile,
+                                             searchType, searchCode, time);
+
+               if (controls.searchRelay.addRoute(searchID, route))
+               {
+                  response = POSITIVE_RESPONSE;
+               }
+            }
+
+            connection.startMessage();
+            connection.putByte(response);
+            connection.send();
+
+            if (response == POSITIVE_RESPONSE)
+            {
+               controls.searchRelay.query(route, searchID, copies, depth);
+            }
+         }
+         catch (IOException e) {
+            keepAlive = false;
+
+            String msgString = new String(
+               "Server error relaying search query from peer " + peerHost +
+               ": " + e.toString());
+            Log.getLog().logWarning(msgString);
+            controls.statusText.setText(msgString);
+         }
+      }
+
+
+      /**
+       * Relay search hit back toward the peer that started the search.
+       */
+      void hitRequest()
+      {
+         try {
+            byte   response   = NEGATIVE_RESPONSE;
+            String searchID   = connection.getString();
+            String targetName = connection.getString();
+            String targetPeer = connection.getString();
+            long   targetPort = connection.getLong();
+            long   targetSize = connection.getLong();
+
+            if (!targetName.equals("") && !targetPeer.equals("") &&
+                controls.searchRelay.hit(searchID,
+                                         new LocationCache.Location(targetName, targetPeer,
+                                                                    targetPort, targetSize)))
+            {
+               response = POSITIVE_RESPONSE;
+            }
+
+            connection.startMessage();
+            connection.putByte(response);
+            connection.send();
+         }
+         catch (IOException e) {
+            keepAlive = false;
+
+            String msgString = new String(
+               "Server error relaying search hit from peer " + peerHost +
+               ": " + e.toString());
+            Log.getLog().logWarning(msgString);
+            controls.statusText.setText(msgString);
+         }
+      }
+
+
+      /**
+       * Take random walker: acknowledge it, then look for the file here
+       * or pass the walker on through the search relay.
+       */
+      void walkRequest()
+      {
+         try {
+            byte   response   = NEGATIVE_RESPONSE;
+            String searchFile = connection.getString();
+            String searchType = connection.getString();
+            String searchCode = connection.getString();
+            String searchID   = connection.getString();
+            String origin     = connection.getString();
+            int    originPort = (int)connection.getLong();
+            long   ttl        = Math.min(connection.getLong(), WALK_TTL) - 1;
+
+            if (controls.sharingEnabled && !searchFile.equals("") &&
+                (searchFile.indexOf(File.separator) == -1) &&
+                (searchType.equals("file") || searchType.equals("folder")) &&
+                !origin.equals(""))
+            {
+               response = POSITIVE_RESPONSE;
+            }
+
+            connection.startMessage();
+            connection.putByte(response);
+            connection.send();
+
+            if (response == POSITIVE_RESPONSE)
+            {
+               SearchRelay.Walk walk = new SearchRelay.Walk(searchFile,
+                                                            searchType, searchCode, searchID, origin, originPort,
+                                                            ttl);
+
+               controls.searchRelay.walk(walk, peerHost, peerPort);
+            }
+         }
+         catch (IOException e) {
+            keepAlive = false;
+
+            String msgString = new String(
+               "Server error taking random walker from peer " + peerHost +
+               ": " + e.toString());
+            Log.getLog().logWarning(msgString);
+            controls.statusText.setText(msgString);
+         }
+      }
+
+
+      /**
+       * Tell walker whether the search it is for is still running here.
+       */
+      void checkRequest()
+      {
+         try {
+            byte   response = NEGATIVE_RESPONSE;
+            String searchID = connection.getString();
+
+            if (controls.searchRelay.isSearching(searchID))
+            {
+               response = POSITIVE_RESPONSE;
+            }
+
+            connection.startMessage();
+            connection.putByte(response);
+            connection.send();
+         }
+         catch (IOException e) {
+            keepAlive = false;
+
+            String msgString = new String(
+               "Server error checking search for peer " + peerHost + ": " +
+               e.toString());
+            Log.getLog().logWarning(msgString);
+            controls.statusText.setText(msgString);
+         }
+      }
+
+
+      /**
+       * Send content filter of shared files, or the bits set since the
+       * version the peer has.
+       */
+      void filterRequest()
+      {
+         try {
+            long        known   = connection.getLong();
+            SharedIndex index   = controls.sharedFiles.index;
+            long        version;
+            byte[]      data    = null;
+            int[]       changes = null;
+
+            if (!controls.sharingEnabled || (index == null))
+            {
+               connection.startMessage();
+               connection.putByte(NEGATIVE_RESPONSE);
+               connection.send();
+
+               return;
+            }
+
+            synchronized (index)
+            {
+               version = index.filterVersion;
+               changes = index.getFilterChanges(known);
+
+               if (changes == null)
+               {
+                  data = index.filter.bits.clone();
+               }
+            }
+
+            if (changes != null)
+            {
+               data = new byte[changes.length * 4];
+
+               for (int i = 0; i < changes.length; i++)
+               {
+                  data[i * 4]       = (byte)(changes[i] >> 24);
+                  data[(i * 4) + 1] = (byte)(changes[i] >> 16);
+                  data[(i * 4) + 2] = (byte)(changes[i] >> 8);
+                  data[(i * 4) + 3] = (byte)changes[i];
+               }
+            }
+
+            connection.startMessage();
+            connection.putByte(POSITIVE_RESPONSE);
+            connection.putLong(version);
+            connection.putString(HashEngine.getDefault().name);
+            connection.putLong(FILTER_BITS);
+            connection.putLong(FILTER_HASHES);
+            connection.putLong((changes == null) ? -1 : changes.length);
+            connection.send();
+            connection.out.write(data);
+            connection.out.flush();
+         }
+         catch (IOException e) {
+            keepAlive = false;
+
+            String msgString = new String(
+               "Server error sending content filter to peer " + peerHost +
+               ": " + e.toString());
+            Log.getLog().logWarning(msgString);
+            controls.statusText.setText(msgString);
+         }
+      }
+
+
       /**
        * Upload file from peer.
        */
-      void uploadRequest(DataInputStream in)
+      void uploadRequest()
       {
-         String sharedFile = null;
-         String tempFile   = null;
+         String  sharedFile = null;
+         String  tempFile   = null;
+         boolean copying    = false;
 
          try {
-            DataOutputStream out = utils.getDataOutputStream(peerSocket);
-            byte             response;
-            String           fileName = utils.readLineFromStream(in);
+            byte   response;
+            String fileName = connection.getString();
 
             if (!fileName.equals("") &&
                 (fileName.indexOf(File.separator) == -1))
             {
-               String fileType = utils.readLineFromStream(in);
+               String fileType = connection.getString();
 
                if (fileType.equals("file") || fileType.equals("folder"))
                {
@@ -601,10 +1870,11 @@ public class Server extends Thread implements Parameters {
                   {
                      // Upload file.
                      response = POSITIVE_RESPONSE;
-                     utils.writeByteToStream(out, response);
+                     connection.startMessage();
+                     connection.putByte(response);
+                     connection.send();
 
-                     DataInputStream up = utils.getDataInputStream(peerSocket);
-                     File            temp;
+                     File temp;
 
                      for (int i = 0; ; i++)       // Pick a unique temp file name
                      {
@@ -618,7 +1888,7 @@ public class Server extends Thread implements Parameters {
                         }
                      }
 
-                     transfer.getFile(up, tempFile, null, null, null);
+                     transfer.getFile(connection, tempFile, null, null, null);
 
                      // Check size constraints.
                      String errmsg = controls.properties.checkFile(tempFile);
@@ -629,10 +1899,17 @@ public class Server extends Thread implements Parameters {
                         if (!file.exists())
                         {
                            // Copy to shared folder.
-                           Utils.copyFile(tempFile, sharedFile);
+                           copying = true;
 
-                           // Refresh panels.
-                           controls.sharedFiles.refresh();
+                           try {
+                              Utils.copyFile(tempFile, sharedFile);
+                           }
+                           finally {
+                              controls.properties.addShared(sharedFile);
+                           }
+
+                           // Update panels.
+                           controls.sharedFiles.update(fileName);
                            controls.properties.refresh();
                         }
 
@@ -648,11 +1925,17 @@ public class Server extends Thread implements Parameters {
             }
 
             response = NEGATIVE_RESPONSE;
-            utils.writeByteToStream(out, response);
+            connection.startMessage();
+            connection.putByte(response);
+            connection.send();
          }
          catch (IOException e) {
-            if (sharedFile != null)
+            keepAlive = false;
+
+            // Undo a partial copy into the shared folder.
+            if (copying)
             {
+               controls.properties.removeShared(sharedFile);
                Utils.deleteFile(sharedFile);
             }
 
@@ -676,11 +1959,27 @@ public class Server extends Thread implements Parameters {
       void confirmationRequest()
       {
          try {
-            DataOutputStream out      = utils.getDataOutputStream(peerSocket);
-            byte             response = POSITIVE_RESPONSE;
-            utils.writeByteToStream(out, response);
+            byte response = POSITIVE_RESPONSE;
+
+            // Switch to framed messages if requested.
+            if (!connection.framed && hasOption(version, FRAMED))
+            {
+               response = FRAMED_RESPONSE;
+            }
+
+            connection.startMessage();
+            connection.putByte(response);
+            connection.send();
+
+            if (response == FRAMED_RESPONSE)
+            {
+               connection.framed = true;
+               keepAlive         = true;
+            }
          }
          catch (IOException e) {
+            keepAlive = false;
+
             String msgString = new String(
                "Server error sending confirmation response to peer " +
                peerHost + ": " + e.toString());
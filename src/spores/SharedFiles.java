@@ -22,8 +22,11 @@ import javax.swing.*;
 
 /**
  * Shared files.
+ * <p>
+ * The list is rebuilt by refresh, and kept current between refreshes
+ * by updating single files as a folder watcher reports them changed.
  */
-public class SharedFiles implements Parameters {
+public class SharedFiles implements Parameters, FolderWatcher.Listener {
    // GUI controls.
    Controls controls;
 
@@ -31,6 +34,12 @@ public class SharedFiles implements Parameters {
    LinkedList fileList;
    int        fileIndex;
 
+   // Index of file list for searches.
+   volatile SharedIndex index;
+
+   // Shared folder watcher.
+   FolderWatcher watcher;
+
    // File name comparator.
    Utils.NameCompare nameCompare;
 
@@ -151,20 +160,24 @@ public class SharedFiles implements Parameters {
          return;
       }
 
-      fileName = currentFile.getName();
+      fileName = controls.sharedFolder + File.separator +
+                 currentFile.getName();
+      controls.properties.removeShared(fileName);
 
       try {
-         Utils.copyFile(currentFileName,
-                        controls.sharedFolder + File.separator + fileName);
+         Utils.copyFile(currentFileName, fileName);
       }
       catch (IOException e) {
+         controls.properties.addShared(fileName);
          controls.statusText.setText("Cannot copy file " + currentFileName +
                                      ": " + e.toString());
 
          return;
       }
 
-      refresh();
+      controls.properties.addShared(fileName);
+
+      update(currentFile.getName());
    }
 
 
@@ -206,10 +219,11 @@ public class SharedFiles implements Parameters {
 
             if (file.exists())
             {
+               controls.properties.removeShared(file.getAbsolutePath());
                Utils.deleteFile(file.getAbsolutePath());
             }
 
-            refresh();
+            update(fileName);
 
             return;
          }
@@ -222,64 +236,151 @@ public class SharedFiles implements Parameters {
    /**
     * Refresh file list.
     */
-   void refresh()
+   synchronized void refresh()
    {
       controls.statusText.setText("");
 
-      LinkedList     fileNames   = Utils.listFiles(controls.sharedFolder);
-      LinkedList     newFileList = new LinkedList();
-      Utils.FileElem fileElem;
-      String         fileName;
-      File           file;
+      // Watch shared folder for changes.
+      watch();
+
+      LinkedList  fileNames   = Utils.listFiles(controls.sharedFolder);
+      LinkedList  newFileList = new LinkedList();
+      SharedIndex newIndex    = new SharedIndex(controls.sharedFolder);
 
       for (int i = 0; i < fileNames.size(); i++)
       {
-         fileElem         = new Utils.FileElem();
-         fileElem.name    = (String)fileNames.get(i);
-         fileName         = controls.sharedFolder + File.separator + fileElem.name;
-         fileElem.md5code = Utils.getMD5ForFile(fileName);
-         file             = new File(fileName);
+         newFileList.add(getFileElem((String)fileNames.get(i), newIndex));
+      }
+
+      HashCache.saveAll();
+      sort(newFileList);
+      fileList = newFileList;
+      index    = newIndex;
+      display();
+   }
+
 
-         if (file.exists() && file.canRead())
+   /**
+    * Update file in list after it is added, changed or removed.
+    */
+   synchronized void update(String name)
+   {
+      LinkedList newFileList = new LinkedList(fileList);
+
+      for (int i = 0; i < newFileList.size(); i++)
+      {
+         if (((Utils.FileElem)newFileList.get(i)).name.equals(name))
          {
-            if (file.isDirectory())
-            {
-               fileElem.type = FOLDER;
-            }
-            else
-            {
-               fileElem.type = FILE;
-            }
+            newFileList.remove(i);
 
-            fileElem.size     = Utils.getFileSize(file.getAbsolutePath());
-            fileElem.modified = file.lastModified();
+            break;
+         }
+      }
+
+      index.remove(name);
+
+      if (new File(controls.sharedFolder, name).exists())
+      {
+         newFileList.add(getFileElem(name, index));
+      }
+
+      sort(newFileList);
+      fileList = newFileList;
+      display();
+   }
+
+
+   // Shared file or folder changed.
+   public void fileChanged(String name)
+   {
+      update(name);
+   }
+
+
+   // Shared folder changes lost.
+   public void folderChanged()
+   {
+      refresh();
+   }
+
+
+   // Watch shared folder, replacing watcher if the folder changed.
+   private void watch()
+   {
+      if ((watcher != null) && watcher.folder.equals(controls.sharedFolder))
+      {
+         return;
+      }
+
+      if (watcher != null)
+      {
+         watcher.quit();
+         watcher = null;
+      }
+
+      try {
+         watcher = new FolderWatcher(controls.sharedFolder, this);
+         watcher.start();
+      }
+      catch (IOException e) {
+         String msgString = new String("Cannot watch shared folder " +
+                                       controls.sharedFolder + ": " + e.toString());
+         Log.getLog().logWarning(msgString);
+      }
+   }
+
+
+   // Get list element for shared file, adding it to index if readable.
+   private Utils.FileElem getFileElem(String name, SharedIndex index)
+   {
+      Utils.FileElem fileElem = new Utils.FileElem();
+      String         fileName = controls.sharedFolder + File.separator + name;
+      File           file     = new File(fileName);
+
+      fileElem.name    = name;
+      fileElem.md5code = Utils.getMD5ForFile(fileName);
+
+      if (file.exists() && file.canRead())
+      {
+         if (file.isDirectory())
+         {
+            fileElem.type = FOLDER;
          }
          else
          {
-            fileElem.type     = FILE;
-            fileElem.size     = 0;
-            fileElem.modified = 0;
+            fileElem.type = FILE;
          }
 
-         newFileList.add(fileElem);
+         fileElem.size     = Utils.getFileSize(file.getAbsolutePath());
+         fileElem.modified = file.lastModified();
+         index.add(fileElem);
       }
+      else
+      {
+         fileElem.type     = FILE;
+         fileElem.size     = 0;
+         fileElem.modified = 0;
+      }
+
+      return(fileElem);
+   }
+
 
-      // Sort by user preference.
+   // Sort file list by user preference.
+   private void sort(LinkedList fileList)
+   {
       if (controls.propertiesFileByNameButton.isSelected())
       {
-         Collections.sort(newFileList, nameCompare);
+         Collections.sort(fileList, nameCompare);
       }
       else if (controls.propertiesFileByModifiedButton.isSelected())
       {
-         Collections.sort(newFileList, modifiedCompare);
+         Collections.sort(fileList, modifiedCompare);
       }
       else
       {
-         Collections.sort(newFileList, sizeCompare);
+         Collections.sort(fileList, sizeCompare);
       }
-
-      fileList = newFileList;
-      display();
    }
 
 
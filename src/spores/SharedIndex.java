@@ -0,0 +1,356 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+import java.util.*;
+
+
+/**
+ * Index of shared files by name and by uniqueness code.
+ * <p>
+ * The index is built by SharedFiles.refresh from the file list it
+ * displays, and replaced as a whole when the shared folder changes.
+ * Single files are replaced as SharedFiles.update sees them change;
+ * code lists are copied on change, so server threads can search
+ * without locking. Entries are checked against the file on a hit,
+ * since the folder can change before an update arrives.
+ * <p>
+ * The index also summarizes the files in a Bloom filter for
+ * neighbouring peers. Each change gives the filter a new version and
+ * is logged, so a neighbour holding a recent version is sent only the
+ * bits set since. Removed files stay in the filter, giving false
+ * matches, until enough are removed that it is rebuilt.
+ */
+public class SharedIndex implements Parameters {
+   // Shared folder.
+   String folder;
+
+   // Files by name, and by type and code.
+   Hashtable names;
+   Hashtable codes;
+
+   // Content filter, its version, and files removed since it was built.
+   BloomFilter filter;
+   long        filterVersion;
+   int         filterRemovals;
+
+   // Recent filter changes, and the version they were made to.
+   LinkedList filterChanges;
+   long       filterBase;
+
+   // Last filter version given out: versions increase across indexes,
+   // and across restarts.
+   private static long lastFilterVersion = System.currentTimeMillis();
+
+   // Constructor.
+   public SharedIndex(String folder)
+   {
+      this.folder = folder;
+      names       = new Hashtable();
+      codes       = new Hashtable();
+      buildFilter();
+   }
+
+
+   // Add file.
+   synchronized void add(Utils.FileElem fileElem)
+   {
+      unindex(fileElem.name);
+      names.put(fileElem.name, fileElem);
+
+      String     key   = getCodeKey(fileElem.type, fileElem.md5code);
+      LinkedList files = (LinkedList)codes.get(key);
+
+      if (files == null)
+      {
+         files = new LinkedList();
+      }
+      else
+      {
+         files = new LinkedList(files);
+      }
+
+      files.add(fileElem);
+      codes.put(key, files);
+
+      // Add file to content filter.
+      int[] nameBits = filter.add(BloomFilter.getNameKey(fileElem.type,
+                                                         fileElem.name));
+      int[] codeBits = filter.add(BloomFilter.getCodeKey(fileElem.type,
+                                                         fileElem.md5code));
+      filterVersion = getFilterVersion();
+      filterChanges.add(new FilterChange(filterVersion, nameBits, codeBits));
+
+      if (filterChanges.size() > MAX_FILTER_CHANGES)
+      {
+         filterBase = ((FilterChange)filterChanges.removeFirst()).version;
+      }
+   }
+
+
+   // Remove file.
+   synchronized void remove(String name)
+   {
+      if (unindex(name) == null)
+      {
+         return;
+      }
+
+      // The name stays in the content filter until it is rebuilt.
+      if (++filterRemovals >= MAX_FILTER_REMOVALS)
+      {
+         buildFilter();
+      }
+   }
+
+
+   // Drop file from name and code tables.
+   // Return the file dropped, or null if not indexed.
+   private Utils.FileElem unindex(String name)
+   {
+      Utils.FileElem fileElem = (Utils.FileElem)names.remove(name);
+
+      if (fileElem == null)
+      {
+         return(null);
+      }
+
+      String     key   = getCodeKey(fileElem.type, fileElem.md5code);
+      LinkedList files = (LinkedList)codes.get(key);
+
+      if (files != null)
+      {
+         files = new LinkedList(files);
+         files.remove(fileElem);
+
+         if (files.size() == 0)
+         {
+            codes.remove(key);
+         }
+         else
+         {
+            codes.put(key, files);
+         }
+      }
+
+      return(fileElem);
+   }
+
+
+   // Build content filter from indexed files.
+   private void buildFilter()
+   {
+      Vector files = new Vector(names.values());
+
+      filter = new BloomFilter(FILTER_BITS, FILTER_HASHES);
+
+      for (int i = 0; i < files.size(); i++)
+      {
+         Utils.FileElem fileElem = (Utils.FileElem)files.get(i);
+
+         filter.add(BloomFilter.getNameKey(fileElem.type, fileElem.name));
+         filter.add(BloomFilter.getCodeKey(fileElem.type, fileElem.md5code));
+      }
+
+      filterVersion  = getFilterVersion();
+      filterRemovals = 0;
+      filterChanges  = new LinkedList();
+      filterBase     = filterVersion;
+   }
+
+
+   // Get content filter bits set since given version: none if it is
+   // current, null if the whole filter must be sent.
+   synchronized int[] getFilterChanges(long version)
+   {
+      if (version == filterVersion)
+      {
+         return(new int[0]);
+      }
+
+      if ((version < filterBase) || (version > filterVersion))
+      {
+         return(null);
+      }
+
+      LinkedList bits = new LinkedList();
+
+      for (int i = 0; i < filterChanges.size(); i++)
+      {
+         FilterChange change = (FilterChange)filterChanges.get(i);
+
+         if (change.version > version)
+         {
+            for (int j = 0; j < change.bits.length; j++)
+            {
+               bits.add(Integer.valueOf(change.bits[j]));
+            }
+         }
+      }
+
+      int[] result = new int[bits.size()];
+
+      for (int i = 0; i < result.length; i++)
+      {
+         result[i] = ((Integer)bits.get(i)).intValue();
+      }
+
+      return(result);
+   }
+
+
+   // Get new filter version.
+   private static synchronized long getFilterVersion()
+   {
+      return(++lastFilterVersion);
+   }
+
+
+   // Find readable file of given name, type and code.
+   // A name of "*" matches any name; an empty code matches any code.
+   Utils.FileElem find(String name, byte type, String code)
+   {
+      Utils.FileElem fileElem;
+
+      // Code from another hash engine?
+      if (!code.equals("") &&
+          (HashEngine.getEngineForCode(code) != HashEngine.getDefault()))
+      {
+         return(findOther(name, type, code));
+      }
+
+      if (name.equals("*"))
+      {
+         LinkedList files = (LinkedList)codes.get(getCodeKey(type, code));
+
+         if (code.equals("") || (files == null))
+         {
+            return(null);
+         }
+
+         for (int i = 0; i < files.size(); i++)
+         {
+            fileElem = (Utils.FileElem)files.get(i);
+
+            if (isCurrent(fileElem))
+            {
+               return(fileElem);
+            }
+         }
+
+         return(null);
+      }
+
+      fileElem = (Utils.FileElem)names.get(name);
+
+      if ((fileElem == null) || (fileElem.type != type) ||
+          !(code.equals("") || code.equals(fileElem.md5code)) ||
+          !isCurrent(fileElem))
+      {
+         return(null);
+      }
+
+      return(fileElem);
+   }
+
+
+   // Find readable file of given name, type and code made by a hash
+   // engine other than the local one, checking files one by one.
+   private Utils.FileElem findOther(String name, byte type, String code)
+   {
+      Vector files = new Vector(names.values());
+
+      for (int i = 0; i < files.size(); i++)
+      {
+         Utils.FileElem fileElem = (Utils.FileElem)files.get(i);
+
+         if ((name.equals("*") || name.equals(fileElem.name)) &&
+             (fileElem.type == type) && isCurrent(fileElem) &&
+             matches(fileElem.name, code))
+         {
+            return(fileElem);
+         }
+      }
+
+      return(null);
+   }
+
+
+   // Does shared file have given code? The code can be from any
+   // hash engine.
+   boolean matches(String name, String code)
+   {
+      if (HashEngine.getEngineForCode(code) == HashEngine.getDefault())
+      {
+         return(code.equals(getCode(name)));
+      }
+
+      return(code.equals(Utils.getCodeForFile(folder + File.separator + name,
+                                              code)));
+   }
+
+
+   // Get uniqueness code of shared file, hashing it if not indexed.
+   String getCode(String name)
+   {
+      Utils.FileElem fileElem = (Utils.FileElem)names.get(name);
+
+      if ((fileElem != null) && isCurrent(fileElem))
+      {
+         return(fileElem.md5code);
+      }
+
+      return(Utils.getMD5ForFile(folder + File.separator + name));
+   }
+
+
+   // Is indexed file still readable and unchanged?
+   // Folder contents are not checked.
+   boolean isCurrent(Utils.FileElem fileElem)
+   {
+      File file = new File(folder, fileElem.name);
+
+      if (!file.canRead() || (file.lastModified() != fileElem.modified))
+      {
+         return(false);
+      }
+
+      if (fileElem.type == FOLDER)
+      {
+         return(file.isDirectory());
+      }
+
+      return(file.isFile() && (file.length() == fileElem.size));
+   }
+
+
+   // Code table key.
+   private static String getCodeKey(byte type, String code)
+   {
+      return(type + ":" + code);
+   }
+
+   // Content filter change.
+   class FilterChange {
+      long  version;
+      int[] bits;
+
+      FilterChange(long version, int[] nameBits, int[] codeBits)
+      {
+         this.version = version;
+         bits         = new int[nameBits.length + codeBits.length];
+         System.arraycopy(nameBits, 0, bits, 0, nameBits.length);
+         System.arraycopy(codeBits, 0, bits, nameBits.length,
+                          codeBits.length);
+      }
+   }
+}
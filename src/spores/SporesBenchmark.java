@@ -0,0 +1,405 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+import java.lang.management.*;
+
+import java.net.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+
+import java.security.*;
+
+
+/**
+ * Spores benchmark driver.
+ * <p>
+ * Usage:<br>
+ * java spores.SporesBenchmark transfer | receive | hash &ltfile&gt [&ltrepetitions&gt]<br>
+ * <p>
+ * transfer: send file over loopback with the stream copy and the
+ * file channel transfer used by Transfer.putFile, reporting
+ * throughput and sending thread CPU time per megabyte.
+ * <p>
+ * receive: receive file over loopback into a temporary file with
+ * Transfer.receiveFile, reporting throughput and receiving thread
+ * CPU time per megabyte.
+ * <p>
+ * hash: hash whole file with the MD5 class through MD5InputStream
+ * and in bulk, and with the hash engine digests, reporting
+ * throughput.
+ */
+public class SporesBenchmark implements Parameters {
+   // Default repetitions.
+   static final int REPETITIONS = 5;
+
+   // Megabyte.
+   static final double MB = 1048576.0;
+
+   // Main.
+   public static void main(String[] args)
+   {
+      if (args.length < 2)
+      {
+         usage();
+      }
+
+      int repetitions = REPETITIONS;
+
+      if (args.length > 2)
+      {
+         try {
+            repetitions = Integer.parseInt(args[2]);
+         }
+         catch (NumberFormatException e) {
+            usage();
+         }
+      }
+
+      try {
+         if (args[0].equals("transfer"))
+         {
+            transfer(args[1], repetitions);
+         }
+         else if (args[0].equals("receive"))
+         {
+            receive(args[1], repetitions);
+         }
+         else if (args[0].equals("hash"))
+         {
+            hash(args[1], repetitions);
+         }
+         else
+         {
+            usage();
+         }
+      }
+      catch (Exception e) {
+         System.err.println("Benchmark error: " + e.toString());
+         System.exit(1);
+      }
+
+      System.exit(0);
+   }
+
+
+   // Usage.
+   static void usage()
+   {
+      System.err.println(
+         "Usage: java spores.SporesBenchmark transfer | receive | hash <file> [<repetitions>]");
+      System.exit(1);
+   }
+
+
+   // Transfer benchmark.
+   static void transfer(String fileName, int repetitions) throws Exception
+   {
+      File file = new File(fileName);
+
+      if (!file.isFile() || !file.canRead())
+      {
+         throw new IOException("Cannot read file " + fileName);
+      }
+
+      long         size     = file.length();
+      Transfer     transfer = new Transfer();
+      ThreadMXBean threads  = ManagementFactory.getThreadMXBean();
+
+      // Loopback receiver.
+      ServerSocketChannel server = ServerSocketChannel.open();
+      server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+      Drain drain = new Drain(server);
+      drain.start();
+
+      System.out.println("File size " + size + " bytes, " + repetitions +
+                         " repetitions");
+
+      for (int mode = 0; mode < 2; mode++)
+      {
+         long time = 0;
+         long cpu  = 0;
+
+         // First pass warms up.
+         for (int i = 0; i <= repetitions; i++)
+         {
+            SocketChannel channel = SocketChannel.open(
+               server.socket().getLocalSocketAddress());
+            long startTime = System.nanoTime();
+            long startCpu  = threads.getCurrentThreadCpuTime();
+
+            if (mode == 0)
+            {
+               transfer.putFileStream(new DataOutputStream(
+                                         channel.socket().getOutputStream()),
+                                      fileName, 0, size, null, null);
+            }
+            else
+            {
+               transfer.putFileChannel(channel, fileName, 0, size, null, null);
+            }
+
+            if (i > 0)
+            {
+               time += System.nanoTime() - startTime;
+               cpu  += threads.getCurrentThreadCpuTime() - startCpu;
+            }
+
+            channel.close();
+         }
+
+         double megabytes = (size * (double)repetitions) / MB;
+         System.out.println(((mode == 0) ? "stream copy:  " : "channel copy: ") +
+                            format(megabytes / (time / 1.0e9)) + " MB/s, " +
+                            format((cpu / 1.0e6) / megabytes) + " CPU ms/MB");
+      }
+
+      server.close();
+   }
+
+
+   // Receive benchmark.
+   static void receive(String fileName, int repetitions) throws Exception
+   {
+      File file = new File(fileName);
+
+      if (!file.isFile() || !file.canRead())
+      {
+         throw new IOException("Cannot read file " + fileName);
+      }
+
+      long         size     = file.length();
+      Transfer     transfer = new Transfer(new Utils());
+      ThreadMXBean threads  = ManagementFactory.getThreadMXBean();
+      File         to       = File.createTempFile("spores", ".bench");
+
+      to.deleteOnExit();
+
+      // Loopback sender.
+      ServerSocketChannel server = ServerSocketChannel.open();
+      server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+      Source source = new Source(server, fileName, size);
+      source.start();
+
+      System.out.println("File size " + size + " bytes, " + repetitions +
+                         " repetitions");
+
+      long time = 0;
+      long cpu  = 0;
+
+      // First pass warms up.
+      for (int i = 0; i <= repetitions; i++)
+      {
+         Socket socket = SocketChannel.open(
+            server.socket().getLocalSocketAddress()).socket();
+         DataInputStream in = new Utils().getDataInputStream(socket);
+         long startTime = System.nanoTime();
+         long startCpu  = threads.getCurrentThreadCpuTime();
+
+         if (transfer.receiveFile(in, to.getPath(), 0, size, null, null, null) != size)
+         {
+            throw new IOException("Short receive");
+         }
+
+         if (i > 0)
+         {
+            time += System.nanoTime() - startTime;
+            cpu  += threads.getCurrentThreadCpuTime() - startCpu;
+         }
+
+         socket.close();
+      }
+
+      double megabytes = (size * (double)repetitions) / MB;
+      System.out.println("receive: " +
+                         format(megabytes / (time / 1.0e9)) + " MB/s, " +
+                         format((cpu / 1.0e6) / megabytes) + " CPU ms/MB");
+
+      server.close();
+   }
+
+
+   // Hash benchmark.
+   static void hash(String fileName, int repetitions) throws Exception
+   {
+      File file = new File(fileName);
+
+      if (!file.isFile() || !file.canRead())
+      {
+         throw new IOException("Cannot read file " + fileName);
+      }
+
+      long     size  = file.length();
+      String[] names =
+      {
+         "MD5 stream:            ", "MD5 class:             ",
+         "MessageDigest MD5:     ", "MessageDigest SHA-256: "
+      };
+
+      System.out.println("File size " + size + " bytes, " + repetitions +
+                         " repetitions");
+
+      for (int mode = 0; mode < names.length; mode++)
+      {
+         long   time = 0;
+         String code = null;
+
+         // First pass warms up.
+         for (int i = 0; i <= repetitions; i++)
+         {
+            long startTime = System.nanoTime();
+            code = hashFile(fileName, mode);
+
+            if (i > 0)
+            {
+               time += System.nanoTime() - startTime;
+            }
+         }
+
+         double megabytes = (size * (double)repetitions) / MB;
+         System.out.println(names[mode] + format(megabytes / (time / 1.0e9)) +
+                            " MB/s, " + code);
+      }
+   }
+
+
+   // Hash whole file: 0=MD5InputStream, 1=MD5 bulk, 2=MessageDigest
+   // MD5, 3=MessageDigest SHA-256.
+   static String hashFile(String fileName, int mode) throws Exception
+   {
+      InputStream in = new FileInputStream(fileName);
+
+      try {
+         if (mode == 0)
+         {
+            MD5InputStream md5in = new MD5InputStream(in);
+
+            while (md5in.read() != -1)
+            {
+            }
+
+            return(md5in.getHashString());
+         }
+
+         byte[]        data   = new byte[RECEIVE_BUFFER_SIZE];
+         MD5           md5    = new MD5();
+         MessageDigest digest = null;
+         int           nr;
+
+         if (mode == 2)
+         {
+            digest = HashEngine.getEngine(MD5_HASH).getDigest();
+         }
+         else if (mode == 3)
+         {
+            digest = HashEngine.getEngine(SHA256_HASH).getDigest();
+         }
+
+         while ((nr = in.read(data)) != -1)
+         {
+            if (digest == null)
+            {
+               md5.update(data, 0, nr);
+            }
+            else
+            {
+               digest.update(data, 0, nr);
+            }
+         }
+
+         if (digest == null)
+         {
+            return(md5.getHashString());
+         }
+
+         return(HashEngine.toHex(digest.digest()));
+      }
+      finally {
+         in.close();
+      }
+   }
+
+
+   // Format to two decimals.
+   static String format(double value)
+   {
+      return(Double.toString(Math.round(value * 100.0) / 100.0));
+   }
+
+
+   // Loopback receiver discarding data.
+   static class Drain extends Thread {
+      ServerSocketChannel server;
+
+      Drain(ServerSocketChannel server)
+      {
+         this.server = server;
+         setDaemon(true);
+      }
+
+
+      public void run()
+      {
+         ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_CHUNK_SIZE);
+
+         try {
+            while (true)
+            {
+               SocketChannel channel = server.accept();
+
+               while (channel.read(buffer) != -1)
+               {
+                  buffer.clear();
+               }
+
+               channel.close();
+            }
+         }
+         catch (IOException e) {
+         }
+      }
+   }
+
+
+   // Loopback sender of file.
+   static class Source extends Thread {
+      ServerSocketChannel server;
+      String              fileName;
+      long                size;
+
+      Source(ServerSocketChannel server, String fileName, long size)
+      {
+         this.server   = server;
+         this.fileName = fileName;
+         this.size     = size;
+         setDaemon(true);
+      }
+
+
+      public void run()
+      {
+         Transfer transfer = new Transfer();
+
+         try {
+            while (true)
+            {
+               SocketChannel channel = server.accept();
+               transfer.putFileChannel(channel, fileName, 0, size, null, null);
+               channel.close();
+            }
+         }
+         catch (IOException e) {
+         }
+      }
+   }
+}
@@ -0,0 +1,588 @@
+/*
+ * This software is provided under the terms of the GNU General
+ * Public License as published by the Free Software Foundation.
+ * Copyright (c) 2003 by Tom Portegys, All Rights Reserved.
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.
+ */
+package spores;
+
+import java.io.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+
+import java.util.*;
+
+import javax.swing.*;
+
+
+/**
+ * Multi-source file download.
+ * <p>
+ * The file is split into chunks that are fetched by range requests
+ * from several peers holding copies, over one connection per peer.
+ * A peer takes the next chunk when it finishes one, so faster peers
+ * fetch more of the file. When no chunks are left, an idle peer also
+ * fetches a chunk still in progress on another peer; the first copy
+ * to arrive is kept and the slower peer is dropped. Only the peer a
+ * chunk was first given to writes it into the file as it arrives; the
+ * other holds its copy in memory and writes it only if it finishes
+ * first, so the two never write over each other. Given the file's
+ * hash tree, chunks are checked as they arrive, and a peer sending a
+ * bad chunk is dropped while the chunk is fetched again from another.
+ */
+public class SwarmDownload implements Parameters {
+   // Chunk states.
+   static final int PENDING = 0;
+   static final int ACTIVE  = 1;
+   static final int DONE    = 2;
+   static final int WRITING = 3;
+
+   // Utilities.
+   Utils utils;
+   int   localPort;
+
+   // File to download and temporary file to assemble it in.
+   String      fileName;
+   String      fileCode;
+   long        fileSize;
+   String      tempFile;
+   FileChannel fileChannel;
+
+   // Hash tree to check chunks with, if available.
+   HashTree tree;
+
+   // Chunks and progress.
+   Chunk[] chunks;
+   int     chunksDone;
+   long    received;
+
+   // Peer fetchers.
+   LinkedList fetchers;
+
+   // Abort flag.
+   boolean abort;
+
+   // Constructor.
+   public SwarmDownload(Utils utils, int localPort, String fileName,
+                        String fileCode, long fileSize, String tempFile)
+   {
+      this.utils     = utils;
+      this.localPort = localPort;
+      this.fileName  = fileName;
+      this.fileCode  = fileCode;
+      this.fileSize  = fileSize;
+      this.tempFile  = tempFile;
+      fetchers       = new LinkedList();
+
+      // Split file into chunks.
+      int count = (int)((fileSize + SWARM_CHUNK_SIZE - 1) / SWARM_CHUNK_SIZE);
+      chunks = new Chunk[count];
+
+      for (int i = 0; i < count; i++)
+      {
+         long offset = (long)i * SWARM_CHUNK_SIZE;
+         chunks[i] = new Chunk(offset,
+                               (int)Math.min(SWARM_CHUNK_SIZE, fileSize - offset));
+      }
+   }
+
+
+   // Add peer holding a copy of the file.
+   void addPeer(String host, int port)
+   {
+      for (int i = 0; i < fetchers.size(); i++)
+      {
+         Fetcher fetcher = (Fetcher)fetchers.get(i);
+
+         if (fetcher.host.equals(host) && (fetcher.port == port))
+         {
+            return;
+         }
+      }
+
+      if (fetchers.size() < MAX_SWARM_PEERS)
+      {
+         fetchers.add(new Fetcher(host, port));
+      }
+   }
+
+
+   // Number of peers.
+   int getPeerCount()
+   {
+      return(fetchers.size());
+   }
+
+
+   // Download file from peers into the temporary file.
+   // Return true if all chunks were received.
+   boolean download(Thread myThread, JProgressBar progressBar)
+   throws IOException
+   {
+      RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+
+      fileChannel = file.getChannel();
+      Transfer.Progress progress = new Transfer.Progress(progressBar, fileSize);
+
+      try {
+         file.setLength(fileSize);
+
+         for (int i = 0; i < fetchers.size(); i++)
+         {
+            ((Fetcher)fetchers.get(i)).start();
+         }
+
+         // Wait for completion, failure of all peers, or interrupt.
+         while (true)
+         {
+            try {
+               Thread.sleep(TRANSFER_DELAY);
+            }
+            catch (InterruptedException e) {
+            }
+
+            progress.update(getReceived());
+
+            if ((myThread != null) && (Transfer.transferThread == myThread) &&
+                Transfer.transferInterrupt)
+            {
+               throw new IOException("Swarm download interrupted");
+            }
+
+            if (isDone() || !isFetching())
+            {
+               break;
+            }
+         }
+
+         progress.finish(getReceived());
+
+         return(isDone());
+      }
+      finally {
+         stop();
+         file.close();
+      }
+   }
+
+
+   // Stop fetchers.
+   void stop()
+   {
+      synchronized (this)
+      {
+         abort = true;
+      }
+
+      for (int i = 0; i < fetchers.size(); i++)
+      {
+         Fetcher fetcher = (Fetcher)fetchers.get(i);
+         fetcher.cancel();
+
+         try {
+            fetcher.join();
+         }
+         catch (InterruptedException e) {
+         }
+      }
+   }
+
+
+   // All chunks received?
+   synchronized boolean isDone()
+   {
+      return(chunksDone == chunks.length);
+   }
+
+
+   // Any fetcher still running?
+   boolean isFetching()
+   {
+      for (int i = 0; i < fetchers.size(); i++)
+      {
+         if (((Fetcher)fetchers.get(i)).isAlive())
+         {
+            return(true);
+         }
+      }
+
+      return(false);
+   }
+
+
+   // Get received byte count.
+   synchronized long getReceived()
+   {
+      return(received);
+   }
+
+
+   // Add to received byte count.
+   synchronized void addReceived(int count)
+   {
+      received += count;
+   }
+
+
+   // Get next chunk to fetch, or null if none.
+   // When no chunks are pending, a chunk in progress on one other
+   // fetcher is returned.
+   synchronized Chunk nextChunk(Fetcher fetcher)
+   {
+      if (abort)
+      {
+         return(null);
+      }
+
+      for (int i = 0; i < chunks.length; i++)
+      {
+         if (chunks[i].state == PENDING)
+         {
+            chunks[i].state    = ACTIVE;
+            chunks[i].fetchers = 1;
+            chunks[i].writer   = fetcher;
+
+            return(chunks[i]);
+         }
+      }
+
+      for (int i = 0; i < chunks.length; i++)
+      {
+         if ((chunks[i].state == ACTIVE) && (chunks[i].fetchers == 1))
+         {
+            chunks[i].fetchers++;
+
+            return(chunks[i]);
+         }
+      }
+
+      return(null);
+   }
+
+
+   // Chunk fetch completed.
+   synchronized void chunkDone(Chunk chunk)
+   {
+      chunk.fetchers--;
+
+      if (chunk.state != DONE)
+      {
+         chunk.state = DONE;
+         chunksDone++;
+      }
+   }
+
+
+   // Chunk fetch failed: make it pending again if no one else has it.
+   // A chunk failing while its held copy is written leaves the file
+   // in doubt, so the download is abandoned.
+   synchronized void chunkFailed(Chunk chunk, Fetcher fetcher)
+   {
+      chunk.fetchers--;
+
+      if ((chunk.state == WRITING) && (chunk.writer == fetcher))
+      {
+         abort = true;
+      }
+      else if ((chunk.state == ACTIVE) && (chunk.fetchers == 0))
+      {
+         chunk.state = PENDING;
+      }
+   }
+
+
+   // Claim chunk to write a held copy of.
+   // Return false if it is already received.
+   synchronized boolean claimChunk(Chunk chunk, Fetcher fetcher)
+   {
+      if (abort || (chunk.state != ACTIVE))
+      {
+         return(false);
+      }
+
+      chunk.state  = WRITING;
+      chunk.writer = fetcher;
+
+      return(true);
+   }
+
+
+   // Is fetcher the one to write chunk as it arrives?
+   synchronized boolean isWriter(Chunk chunk, Fetcher fetcher)
+   {
+      return(chunk.writer == fetcher);
+   }
+
+
+   // Chunk already received or being written, or download aborted?
+   synchronized boolean isCancelled(Chunk chunk)
+   {
+      return(abort || (chunk.state != ACTIVE));
+   }
+
+
+   // File chunk.
+   class Chunk {
+      long offset;
+      int  length;
+      int  state;
+      int  fetchers;
+
+      // Fetcher writing chunk.
+      Fetcher writer;
+
+      Chunk(long offset, int length)
+      {
+         this.offset = offset;
+         this.length = length;
+         state       = PENDING;
+         fetchers    = 0;
+         writer      = null;
+      }
+   }
+
+
+   // Fetcher of chunks from a peer.
+   class Fetcher extends Thread {
+      String         host;
+      int            port;
+      PeerConnection connection;
+
+      // Constructor.
+      Fetcher(String host, int port)
+      {
+         this.host = host;
+         this.port = port;
+         setDaemon(true);
+      }
+
+
+      // Fetch chunks until none are left or the peer fails.
+      public void run()
+      {
+         Chunk chunk = null;
+
+         try {
+            synchronized (this)
+            {
+               connection = utils.openConnection(host, port, localPort);
+            }
+
+            // Ranges need a framed peer.
+            if (!connection.framed)
+            {
+               utils.releaseConnection(connection);
+               connection = null;
+
+               return;
+            }
+
+            while ((chunk = nextChunk(this)) != null)
+            {
+               if (!fetch(chunk))
+               {
+                  chunkFailed(chunk, this);
+                  chunk = null;
+
+                  break;
+               }
+
+               chunkDone(chunk);
+               chunk = null;
+            }
+
+            if (connection != null)
+            {
+               utils.releaseConnection(connection);
+               connection = null;
+            }
+         }
+         catch (Exception e) {
+            boolean cancelled = abort;
+
+            if (chunk != null)
+            {
+               cancelled = isCancelled(chunk);
+               chunkFailed(chunk, this);
+            }
+
+            if (!cancelled)
+            {
+               String msgString = new String("Error downloading chunk of " +
+                                             fileName + " from " + host + ":" +
+                                             port + ": " + e.toString());
+               Log.getLog().logWarning(msgString);
+            }
+         }
+         finally {
+            synchronized (this)
+            {
+               if (connection != null)
+               {
+                  utils.closeConnection(connection);
+                  connection = null;
+               }
+            }
+         }
+      }
+
+
+      // Fetch chunk into file.
+      // Return false if the peer does not have the file; throw an
+      // exception if the chunk is cancelled while being fetched.
+      boolean fetch(Chunk chunk) throws IOException
+      {
+         // Request range.
+         connection.startRequest(localPort, RANGE_REQUEST);
+         connection.putString(fileName);
+         connection.putString(fileCode);
+         connection.putLong(chunk.offset);
+         connection.putLong(chunk.length);
+         connection.send();
+
+         // Get response.
+         connection.receive(SOCKET_TIME_OUT);
+
+         if (connection.getByte() != POSITIVE_RESPONSE)
+         {
+            return(false);
+         }
+
+         connection.receive(SOCKET_TIME_OUT);
+         byte type   = connection.getByte();
+         long size   = connection.getLong();
+         long offset = connection.getLong();
+
+         if ((type != FILE) || (size != fileSize) || (offset != chunk.offset))
+         {
+            throw new IOException("Invalid chunk size=" + size +
+                                  ", offset=" + offset);
+         }
+
+         // Receive chunk data.
+         // The writer of the chunk writes it into the file as it
+         // arrives; a second fetcher holds its copy until done.
+         DataInputStream   in       = connection.in;
+         boolean           direct   = isWriter(chunk, this);
+         byte[]            data;
+         HashTree.Verifier verifier = null;
+         long              rcv      = 0;
+         int               off      = 0;
+         int               nr;
+
+         if (direct)
+         {
+            data = Transfer.getReceiveBuffer();
+         }
+         else
+         {
+            data = new byte[chunk.length];
+         }
+
+         if (tree != null)
+         {
+            verifier = tree.new Verifier((int)(chunk.offset / tree.chunkSize));
+         }
+
+         try {
+            while (rcv < chunk.length)
+            {
+               if (!direct)
+               {
+                  off = (int)rcv;
+               }
+
+               nr = (int)Math.min(data.length - off, chunk.length - rcv);
+
+               if ((nr = utils.readFromStream(in, data, off, nr,
+                                              SOCKET_TIME_OUT)) == 0)
+               {
+                  throw new IOException("Chunk time-out");
+               }
+
+               if (isCancelled(chunk))
+               {
+                  throw new IOException("Chunk cancelled");
+               }
+
+               if (verifier != null)
+               {
+                  verifier.update(data, off, nr);
+               }
+
+               // Write unless the chunk is taken meanwhile.
+               if (direct)
+               {
+                  synchronized (chunk)
+                  {
+                     if (isCancelled(chunk))
+                     {
+                        throw new IOException("Chunk cancelled");
+                     }
+
+                     write(data, 0, nr, chunk.offset + rcv);
+                  }
+               }
+
+               rcv += nr;
+               addReceived(nr);
+            }
+
+            if ((verifier != null) && !verifier.isValid())
+            {
+               throw new IOException("Chunk at offset " + chunk.offset +
+                                     " failed hash check");
+            }
+
+            // Write held copy if first to finish.
+            if (!direct)
+            {
+               synchronized (chunk)
+               {
+                  if (!claimChunk(chunk, this))
+                  {
+                     throw new IOException("Chunk cancelled");
+                  }
+
+                  write(data, 0, chunk.length, chunk.offset);
+               }
+            }
+         }
+         finally {
+            if (direct)
+            {
+               Transfer.releaseReceiveBuffer(data);
+            }
+         }
+
+         return(true);
+      }
+
+
+      // Write data into file at position.
+      void write(byte[] data, int offset, int length, long position)
+      throws IOException
+      {
+         ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+
+         while (buffer.hasRemaining())
+         {
+            fileChannel.write(buffer, position + buffer.position() - offset);
+         }
+      }
+
+
+      // Cancel fetch by closing connection.
+      synchronized void cancel()
+      {
+         if (connection != null)
+         {
+            connection.close();
+         }
+      }
+   }
+}
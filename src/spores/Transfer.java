@@ -17,6 +17,9 @@ import java.math.*;
 
 import java.net.*;
 
+import java.nio.*;
+import java.nio.channels.*;
+
 import java.util.*;
 
 import javax.swing.*;
@@ -30,6 +33,9 @@ public class Transfer implements Parameters, Runnable {
    static Thread  transferThread    = null;
    static boolean transferInterrupt = false;
 
+   // Pooled file receive buffers.
+   private static LinkedList receiveBuffers = new LinkedList();
+
    // GUI controls and connections.
    private Controls controls;
    private P2P      p2p;
@@ -64,6 +70,13 @@ public class Transfer implements Parameters, Runnable {
    }
 
 
+   // Constructor for file transfers without controls.
+   Transfer(Utils utils)
+   {
+      this.utils = utils;
+   }
+
+
    // Start/stop operation.
    void operate(boolean start)
    {
@@ -223,18 +236,20 @@ public class Transfer implements Parameters, Runnable {
 
       // Compute a unique search ID to prevent network looping.
       searchID = Utils.getMD5ForString(p2p.localHost + searchFile +
-                                       searchType + searchCode);
-      controls.searchCache.put(searchID, new Boolean(true));
+                                       searchType + searchCode +
+                                       System.currentTimeMillis() +
+                                       controls.random.nextLong());
+      controls.searchCache.add(searchID);
 
       // Start network search.
       Log.getLog().logInformation("Searching for " + searchType + " " +
                                   searchFile);
       controls.transferResultsText.append("Searching for " + searchType +
                                           " " + searchFile + "\n");
-      connectedPeers = p2p.connectedPeers.copy();
-      peerSearch     = new PeerSearch(utils, connectedPeers, p2p.localPort,
-                                      searchFile, searchType, searchCode, searchID, copies,
-                                      MAX_SEARCH_DEPTH);
+      connectedPeers = p2p.getSearchPeers(p2p.connectedPeers.copy(),
+                                          searchFile, searchType, searchCode, MAX_SEARCH_DEPTH);
+      peerSearch     = createSearch(connectedPeers, searchFile, searchType,
+                                    searchCode, searchID, copies);
       peerSearch.start();
 
       // Wait for search completion or time-out.
@@ -260,22 +275,36 @@ public class Transfer implements Parameters, Runnable {
          }
 
          try {
-            Thread.sleep(100);
+            peerSearch.join(100);
          }
          catch (InterruptedException e) {
          }
       }
 
+      // Abandon any searches still outstanding.
+      // Take the results once, as a ring search may still replace them.
+      peerSearch.cancel();
+      PeerSearch.SearchThread[] results = peerSearch.searchThreads;
+
       // Accumulate search results.
-      for (int i = 0; i < peerSearch.searchThreads.length; i++)
+      for (int i = 0; i < results.length; i++)
       {
-         searchResult = peerSearch.searchThreads[i];
+         searchResult = results[i];
 
          if (searchResult.result == PeerSearch.SUCCESS)
          {
             // Accumulate copies found.
             copiesFound += searchResult.copiesFound;
 
+            // Remember where file was found.
+            if (!(p2p.localHost.equals(searchResult.targetPeer) &&
+                  (p2p.localPort == searchResult.targetPort)))
+            {
+               controls.locationCache.put(searchFile, searchType, searchCode,
+                                          searchResult.targetName, searchResult.targetPeer,
+                                          searchResult.targetPort, searchResult.targetSize);
+            }
+
             // Save peer containing file.
             if ((p2p.localHost.equals(searchResult.targetPeer) &&
                  (p2p.localPort == searchResult.targetPort)) ||
@@ -313,9 +342,6 @@ public class Transfer implements Parameters, Runnable {
          p2p.connectedPeers.addPeer(targetPeer, targetPort);
       }
 
-      // Remove search cache entry.
-      controls.searchCache.remove(searchID);
-
       if (copiesFound > 0)
       {
          Log.getLog().logInformation("Search completed: " + copiesFound +
@@ -355,7 +381,12 @@ public class Transfer implements Parameters, Runnable {
       long    targetSize = 0;
       boolean done;
       boolean success;
-      Socket  socket;
+      boolean resume;
+      boolean fetched;
+      boolean swarmTried = false;
+      PeerConnection connection;
+      SwarmDownload  swarm;
+      HashTree       tree;
 
       // Save download info.
       if ((myThread = transferThread) == null)
@@ -430,8 +461,10 @@ public class Transfer implements Parameters, Runnable {
 
       // Compute a unique search ID to prevent network looping.
       searchID = Utils.getMD5ForString(p2p.localHost + downloadFile +
-                                       fileType + downloadCode);
-      controls.searchCache.put(searchID, new Boolean(true));
+                                       fileType + downloadCode +
+                                       System.currentTimeMillis() +
+                                       controls.random.nextLong());
+      controls.searchCache.add(searchID);
 
       // Search for file.
       Log.getLog().logInformation("Attempting download of " + downloadType +
@@ -440,10 +473,18 @@ public class Transfer implements Parameters, Runnable {
                                           downloadType + " " + downloadFile + "\n");
       controls.transferProgressBar.setMinimum(0);
       done           = success = false;
-      connectedPeers = p2p.connectedPeers.copy();
-      peerSearch     = new PeerSearch(utils, connectedPeers, p2p.localPort,
-                                      downloadFile, downloadType, downloadCode, searchID, 1,
-                                      MAX_SEARCH_DEPTH);
+      connectedPeers = p2p.getSearchPeers(p2p.connectedPeers.copy(),
+                                          downloadFile, downloadType, downloadCode, MAX_SEARCH_DEPTH);
+      peerSearch     = createSearch(connectedPeers, downloadFile, downloadType,
+                                    downloadCode, searchID, 1);
+
+      // Wait for enough copies of a file to download it from several
+      // peers at once.
+      if (downloadType.equals("file"))
+      {
+         peerSearch.enoughCopies = MAX_SWARM_PEERS;
+      }
+
       peerSearch.start();
 
       // Wait for search completion or time-out.
@@ -469,24 +510,30 @@ public class Transfer implements Parameters, Runnable {
          }
 
          try {
-            Thread.sleep(100);
+            peerSearch.join(100);
          }
          catch (InterruptedException e) {
          }
       }
 
+      // Abandon any searches still outstanding.
+      // Take the results once, as a ring search may still replace them.
+      peerSearch.cancel();
+      PeerSearch.SearchThread[] results = peerSearch.searchThreads;
+
       // Check search results.
       done = success = false;
 
-      for (int i = 0; (i < peerSearch.searchThreads.length) && !done; i++)
+      for (int i = 0; (i < results.length) && !done; i++)
       {
-         searchResult = peerSearch.searchThreads[i];
+         searchResult = results[i];
 
          if (searchResult.result == PeerSearch.SUCCESS)
          {
             targetName = searchResult.targetName;
             targetPeer = searchResult.targetPeer;
             targetPort = (int)searchResult.targetPort;
+            targetSize = searchResult.targetSize;
          }
 
          if (targetPeer == null)
@@ -519,34 +566,126 @@ public class Transfer implements Parameters, Runnable {
             continue;
          }
 
-         // Found file: attempt download from peer.
-         socket = null;
+         // Found file: attempt download from all peers that have it
+         // at once, then from the peer.
+         connection = null;
+         swarm      = null;
+         tree       = null;
+         fetched    = false;
+
+         if (!swarmTried && downloadType.equals("file") &&
+             (targetSize > SWARM_CHUNK_SIZE) &&
+             !new File(tempFile + RESUME_SUFFIX).exists())
+         {
+            swarmTried = true;
+            swarm      = createSwarm(peerSearch, targetName, downloadCode,
+                                     targetSize, tempFile);
+         }
 
          try {
-            socket = utils.createSocket(targetPeer, targetPort);
+            if (swarm != null)
+            {
+               Log.getLog().logInformation("Downloading from " +
+                                           swarm.getPeerCount() + " peers...");
+               controls.transferResultsText.append("Downloading from " +
+                                                   swarm.getPeerCount() + " peers...\n");
+               showSize(targetSize, controls.currentSizeText,
+                        controls.transferProgressBar);
+               if (((tree = requestTree(targetPeer, targetPort, targetName,
+                                        downloadCode)) != null) &&
+                   (tree.size != targetSize))
+               {
+                  tree = null;
+               }
 
-            // Request download.
-            PrintWriter out = utils.getPrintWriter(socket);
-            utils.printToStream(out,
-                                Double.toString(VERSION) + "\n" +
-                                Integer.toString(p2p.localPort) + "\n" + DOWNLOAD_REQUEST +
-                                "\n" + targetName + "\n" + downloadType + "\n" +
-                                downloadCode);
+               swarm.tree = tree;
+               fetched    = swarm.download(myThread, controls.transferProgressBar);
 
-            // Get response.
-            DataInputStream in       = utils.getDataInputStream(socket);
-            byte            response = utils.readByteFromStream(in);
+               if (!fetched)
+               {
+                  Utils.deleteFile(tempFile);
+               }
+            }
 
-            if (response == POSITIVE_RESPONSE)
+            if (!fetched)
             {
-               // Download file.
-               Log.getLog().logInformation("Downloading from " +
-                                           targetPeer + "...");
-               controls.transferResultsText.append("Downloading from " +
-                                                   targetPeer + "...\n");
-               getFile(in, tempFile, myThread, controls.currentSizeText,
-                       controls.transferProgressBar);
+               connection = utils.openConnection(targetPeer, targetPort,
+                                                 p2p.localPort);
 
+               // Request download.
+               // A file from a framed peer is requested by range to resume
+               // any partial download kept from a previous attempt.
+               resume = connection.framed && downloadType.equals("file");
+
+               if (resume)
+               {
+                  if (((tree = requestTree(connection, targetName,
+                                           downloadCode)) != null) &&
+                      (tree.size != targetSize))
+                  {
+                     tree = null;
+                  }
+
+                  connection.startRequest(p2p.localPort, RANGE_REQUEST);
+                  long offset = getResumeOffset(tempFile, targetSize,
+                                                downloadCode, tree);
+                  connection.putString(targetName);
+                  connection.putString(downloadCode);
+                  connection.putLong(offset);
+                  connection.putLong(targetSize - offset);
+               }
+               else
+               {
+                  Utils.deleteFile(tempFile + RESUME_SUFFIX);
+                  connection.startRequest(p2p.localPort, DOWNLOAD_REQUEST);
+                  connection.putString(targetName);
+                  connection.putString(downloadType);
+                  connection.putString(downloadCode);
+               }
+
+               connection.send();
+
+               // Get response.
+               connection.receive(SOCKET_TIME_OUT);
+               byte response = connection.getByte();
+
+               if (response == POSITIVE_RESPONSE)
+               {
+                  // Download file.
+                  Log.getLog().logInformation("Downloading from " +
+                                              targetPeer + "...");
+                  controls.transferResultsText.append("Downloading from " +
+                                                      targetPeer + "...\n");
+                  if (resume)
+                  {
+                     LinkedList badChunks = getFileRange(connection, tempFile,
+                                                         targetSize, tree, myThread,
+                                                         controls.currentSizeText,
+                                                         controls.transferProgressBar);
+
+                     if (badChunks.size() > 0)
+                     {
+                        Log.getLog().logInformation("Chunks failing hash check: " +
+                                                    badChunks.size() + ", fetching again...");
+                        controls.transferResultsText.append("Chunks failing hash check: " +
+                                                            badChunks.size() + ", fetching again...\n");
+                        getChunks(connection, targetName, downloadCode,
+                                  tempFile, tree, badChunks);
+                     }
+                  }
+                  else
+                  {
+                     getFile(connection, tempFile, myThread,
+                             controls.currentSizeText,
+                             controls.transferProgressBar);
+                  }
+
+                  fetched = true;
+               }
+            }
+
+            if (fetched)
+            {
                // File matches requested type?
                file = new File(tempFile);
 
@@ -557,8 +696,8 @@ public class Transfer implements Parameters, Runnable {
                {
                   // File matches requested code?
                   if (downloadCode.equals("") ||
-                      downloadCode.equals(Utils.getMD5ForFile(
-                                             tempFile)))
+                      downloadCode.equals(Utils.getCodeForFile(
+                                             tempFile, downloadCode)))
                   {
                      done = true;
 
@@ -567,11 +706,24 @@ public class Transfer implements Parameters, Runnable {
 
                      if (errmsg.equals(""))
                      {
-                        // Copy to shared folder.
-                        Utils.copyFile(tempFile, sharedFile);
+                        // Copy to shared folder, keeping hash tree.
+                        controls.properties.removeShared(sharedFile);
+
+                        try {
+                           Utils.copyFile(tempFile, sharedFile);
+                        }
+                        finally {
+                           controls.properties.addShared(sharedFile);
+                        }
+
+                        if ((tree != null) &&
+                            (tree.size == new File(sharedFile).length()))
+                        {
+                           tree.save(sharedFile);
+                        }
 
-                        // Refresh shared files panel.
-                        controls.sharedFiles.refresh();
+                        // Update shared files panel.
+                        controls.sharedFiles.update(new File(sharedFile).getName());
 
                         // Update/refresh panels.
                         controls.currentUniquenessText.setText(Utils.getMD5ForFile(
@@ -588,7 +740,6 @@ public class Transfer implements Parameters, Runnable {
 
                         controls.currentSizeText.setText(Long.toString(
                                                             Utils.getFileSize(tempFile) / 1000));
-                        controls.sharedFiles.refresh();
                         controls.properties.refresh();
                         success = true;
                      }
@@ -619,11 +770,21 @@ public class Transfer implements Parameters, Runnable {
 
                // Remove temp file.
                Utils.deleteFile(tempFile);
+               Utils.deleteFile(tempFile + RESUME_SUFFIX);
+            }
+
+            if (connection != null)
+            {
+               utils.releaseConnection(connection);
+               connection = null;
             }
          }
          catch (Exception e) {
-            // Remove temporary file.
-            Utils.deleteFile(tempFile);
+            // Remove temporary file unless it can be resumed.
+            if (!new File(tempFile + RESUME_SUFFIX).exists())
+            {
+               Utils.deleteFile(tempFile);
+            }
 
             String msgString = new String("Error downloading " +
                                           downloadType + " " + downloadFile + " from " +
@@ -632,13 +793,27 @@ public class Transfer implements Parameters, Runnable {
             controls.transferResultsText.append(msgString + "\n");
          }
          finally {
-            try {
-               if (socket != null)
-               {
-                  utils.closeSocket(socket);
-               }
+            if (connection != null)
+            {
+               utils.closeConnection(connection);
             }
-            catch (Exception e) {
+         }
+
+         // Remember where the file was got from, or forget a location
+         // it could not be got from.
+         if (!(p2p.localHost.equals(targetPeer) &&
+               (p2p.localPort == targetPort)))
+         {
+            if (done)
+            {
+               controls.locationCache.put(downloadFile, downloadType,
+                                          downloadCode, targetName, targetPeer, targetPort,
+                                          targetSize);
+            }
+            else if (!((myThread == transferThread) && transferInterrupt))
+            {
+               controls.locationCache.remove(downloadFile, downloadType,
+                                             downloadCode, targetPeer, targetPort);
             }
          }
       }
@@ -663,9 +838,6 @@ public class Transfer implements Parameters, Runnable {
          p2p.connectedPeers.addPeer(targetPeer, targetPort);
       }
 
-      // Remove search cache entry.
-      controls.searchCache.remove(searchID);
-
       if ((myThread == transferThread) && transferInterrupt)
       {
          return;
@@ -688,6 +860,189 @@ public class Transfer implements Parameters, Runnable {
    }
 
 
+   // Create search of peers: by random walks or expanding rings, and
+   // relayed asynchronously, if chosen.
+   private PeerSearch createSearch(P2P.PeerList peerList, String file,
+                                   String type, String code, String searchID, long copies)
+   {
+      if (PeerSearch.getSearchMode() == WALK_SEARCH)
+      {
+         return(new RandomWalkSearch(controls.searchRelay, utils, peerList,
+                                     p2p.localPort, file, type, code, searchID, copies,
+                                     RELAY_SEARCH_TIME));
+      }
+
+      if (PeerSearch.getSearchMode() == RING_SEARCH)
+      {
+         return(new RingSearch(controls, peerList, file, type, code, searchID,
+                               copies, MAX_SEARCH_DEPTH,
+                               SearchRelay.isEnabled() ? RELAY_SEARCH_TIME : SEARCH_TIME_OUT));
+      }
+
+      if (SearchRelay.isEnabled())
+      {
+         return(new RelaySearch(controls.searchRelay, utils, peerList,
+                                p2p.localPort, file, type, code, searchID, copies,
+                                MAX_SEARCH_DEPTH, RELAY_SEARCH_TIME));
+      }
+
+      return(new PeerSearch(utils, peerList, p2p.localPort, file, type, code,
+                            searchID, copies, MAX_SEARCH_DEPTH));
+   }
+
+
+   // Request hash tree of file from peer.
+   // Return null if it is not available.
+   HashTree requestTree(String host, int port, String name, String code)
+   {
+      PeerConnection connection = null;
+      HashTree       tree       = null;
+
+      try {
+         connection = utils.openConnection(host, port, p2p.localPort);
+
+         if (connection.framed)
+         {
+            tree = requestTree(connection, name, code);
+         }
+
+         utils.releaseConnection(connection);
+         connection = null;
+      }
+      catch (Exception e) {
+         String msgString = new String("Error getting hash tree of " + name +
+                                       " from " + host + ":" + e.toString());
+         Log.getLog().logWarning(msgString);
+      }
+      finally {
+         if (connection != null)
+         {
+            utils.closeConnection(connection);
+         }
+      }
+
+      return(tree);
+   }
+
+
+   // Request hash tree of file from connection.
+   // Return null if the peer does not have it.
+   HashTree requestTree(PeerConnection connection, String name, String code)
+   throws IOException
+   {
+      connection.startRequest(p2p.localPort, TREE_REQUEST);
+      connection.putString(name);
+      connection.putString(code);
+      connection.send();
+
+      connection.receive(TREE_TIME_OUT);
+
+      if (connection.getByte() != POSITIVE_RESPONSE)
+      {
+         return(null);
+      }
+
+      return(HashTree.get(connection, utils));
+   }
+
+
+   // Create download of file from all peers that found a copy of it,
+   // or null if fewer than two peers did.
+   private SwarmDownload createSwarm(PeerSearch peerSearch, String name,
+                                     String code, long size, String tempFile)
+   {
+      PeerSearch.SearchThread   searchResult;
+      PeerSearch.SearchThread[] results = peerSearch.searchThreads;
+      SwarmDownload             swarm   = new SwarmDownload(utils, p2p.localPort,
+                                                            name, code, size, tempFile);
+
+      for (int i = 0; i < results.length; i++)
+      {
+         searchResult = results[i];
+
+         if ((searchResult.result == PeerSearch.SUCCESS) &&
+             name.equals(searchResult.targetName) &&
+             (size == searchResult.targetSize))
+         {
+            swarm.addPeer(searchResult.targetPeer,
+                          (int)searchResult.targetPort);
+         }
+      }
+
+      if (swarm.getPeerCount() < 2)
+      {
+         return(null);
+      }
+
+      return(swarm);
+   }
+
+
+   // Get offset to resume partial download of file from.
+   // The partial file is kept if its resume marker matches the size
+   // and code of the file; otherwise it is replaced by a new marker.
+   // With a hash tree, the offset is the start of the last partial chunk.
+   long getResumeOffset(String tempFile, long size, String code,
+                        HashTree tree)
+   {
+      File           file   = new File(tempFile);
+      String         marker = tempFile + RESUME_SUFFIX;
+      BufferedReader in     = null;
+
+      try {
+         if (file.exists() && file.isFile() && (file.length() <= size))
+         {
+            in = new BufferedReader(new FileReader(marker));
+            String markerSize = in.readLine();
+            String markerCode = in.readLine();
+            in.close();
+            in = null;
+
+            if ((markerSize != null) && (markerCode != null) &&
+                (Long.parseLong(markerSize) == size) &&
+                (code.equals("") || markerCode.equals("") ||
+                 code.equals(markerCode)))
+            {
+               if (tree != null)
+               {
+                  return(file.length() - (file.length() % tree.chunkSize));
+               }
+
+               return(Math.max(0, file.length() - RESUME_OVERLAP));
+            }
+         }
+      }
+      catch (Exception e) {
+      }
+      finally {
+         if (in != null)
+         {
+            try {
+               in.close();
+            }
+            catch (IOException e) {
+            }
+         }
+      }
+
+      // Start new partial file.
+      Utils.deleteFile(tempFile);
+
+      try {
+         PrintWriter out = new PrintWriter(new BufferedWriter(
+                                              new FileWriter(marker)));
+         out.println(size);
+         out.println(code);
+         out.close();
+      }
+      catch (IOException e) {
+         Utils.deleteFile(marker);
+      }
+
+      return(0);
+   }
+
+
    // Upload.
    private void upload()
    {
@@ -704,7 +1059,7 @@ public class Transfer implements Parameters, Runnable {
       P2P.PeerList    pushList;
       P2P.PeerList    tempList;
       int             size;
-      Socket          socket;
+      PeerConnection  connection;
       boolean         done = false;
 
       // Save upload info.
@@ -828,23 +1183,22 @@ public class Transfer implements Parameters, Runnable {
                break;
             }
 
-            // Create connection to peer.
-            socket = null;
+            // Get connection to peer.
+            connection = null;
 
             try {
-               socket = utils.createSocket(peerAddress.host,
-                                           peerAddress.port);
+               connection = utils.openConnection(peerAddress.host,
+                                                 peerAddress.port, p2p.localPort);
 
                // Request upload.
-               PrintWriter out = utils.getPrintWriter(socket);
-               utils.printToStream(out,
-                                   Double.toString(VERSION) + "\n" +
-                                   Integer.toString(p2p.localPort) + "\n" +
-                                   UPLOAD_REQUEST + "\n" + fileName + "\n" + uploadType);
+               connection.startRequest(p2p.localPort, UPLOAD_REQUEST);
+               connection.putString(fileName);
+               connection.putString(uploadType);
+               connection.send();
 
                // Get response.
-               DataInputStream in       = utils.getDataInputStream(socket);
-               byte            response = utils.readByteFromStream(in);
+               connection.receive(SOCKET_TIME_OUT);
+               byte response = connection.getByte();
 
                if (response == POSITIVE_RESPONSE)
                {
@@ -854,12 +1208,14 @@ public class Transfer implements Parameters, Runnable {
                   controls.transferResultsText.append("Pushing to " +
                                                       peerAddress.host + "...\n");
 
-                  DataOutputStream up = utils.getDataOutputStream(socket);
-                  putFile(up, uploadFile, myThread,
+                  putFile(connection, uploadFile, myThread,
                           controls.currentSizeText,
                           controls.transferProgressBar);
                   copiesPushed++;
                }
+
+               utils.releaseConnection(connection);
+               connection = null;
             }
             catch (Exception e) {
                String msgString = new String("Error uploading file " +
@@ -869,13 +1225,9 @@ public class Transfer implements Parameters, Runnable {
                controls.transferResultsText.append(msgString + "\n");
             }
             finally {
-               try {
-                  if (socket != null)
-                  {
-                     utils.closeSocket(socket);
-                  }
-               }
-               catch (Exception e) {
+               if (connection != null)
+               {
+                  utils.closeConnection(connection);
                }
             }
          }
@@ -996,16 +1348,19 @@ public class Transfer implements Parameters, Runnable {
    }
 
 
-   // Get file/folder from input stream.
-   public void getFile(DataInputStream in, String to, Thread myThread,
+   // Get file/folder from connection.
+   public void getFile(PeerConnection connection, String to, Thread myThread,
                        JTextField sizeText, JProgressBar progressBar)
    throws IOException
    {
-      long   size;
-      String fileName;
+      long            size;
+      String          fileName;
+      DataInputStream in = connection.in;
 
-      // Get type: file or folder.
-      byte type = utils.readByteFromStream(in);
+      // Get type: file or folder, and size.
+      connection.receive(SOCKET_TIME_OUT);
+      byte type = connection.getByte();
+      size = connection.getLong();
 
       if (type == FOLDER)
       {
@@ -1014,91 +1369,379 @@ public class Transfer implements Parameters, Runnable {
          file.mkdir();
 
          String path = file.getAbsolutePath();
-         size = utils.readLongFromStream(in);
 
          for (int i = 0; i < size; i++)
          {
-            fileName = utils.readLineFromStream(in);
-            getFile(in, path + File.separator + fileName, myThread,
+            connection.receive(SOCKET_TIME_OUT);
+            fileName = connection.getString();
+            getFile(connection, path + File.separator + fileName, myThread,
                     sizeText, progressBar);
          }
       }
       else  // not folder
 
-      {     // Get file size.
-         size = utils.readLongFromStream(in);
-
-         if ((size < 0) || (size > MAX_TRANSFER_FILE_SIZE))
+      {     // Check file size.
+         if ((size < 0) || (size > connection.getMaxFileSize()))
          {
             throw new IOException("Invalid getFile size=" + size +
-                                  ", MAX_TRANSFER_FILE_SIZE=" + MAX_TRANSFER_FILE_SIZE);
+                                  ", maximum=" + connection.getMaxFileSize());
          }
 
          // Initialize size and progress bar displays.
-         if (sizeText != null)
+         showSize(size, sizeText, progressBar);
+
+         // Read file.
+         receiveFile(in, to, 0, size, myThread, progressBar, null);
+      }
+   }
+
+
+   // Get file range from connection into partial file.
+   // The range starts at or before the end of the partial file.
+   // Without a hash tree, the overlap is checked against the partial
+   // data, and if the range does not match, the partial file is removed.
+   // With a hash tree, the partial file is cut back to the start of the
+   // range, and both the partial data and the received data are checked
+   // chunk by chunk. Return the list of chunks that failed the check.
+   public LinkedList getFileRange(PeerConnection connection, String to,
+                                  long expected, HashTree tree, Thread myThread,
+                                  JTextField sizeText, JProgressBar progressBar)
+   throws IOException
+   {
+      DataInputStream in = connection.in;
+
+      // Get type, size and offset.
+      connection.receive(SOCKET_TIME_OUT);
+      byte type   = connection.getByte();
+      long size   = connection.getLong();
+      long offset = connection.getLong();
+
+      File file   = new File(to);
+      long length = 0;
+
+      if (file.exists())
+      {
+         length = file.length();
+      }
+
+      if ((type != FILE) || (size != expected) ||
+          (size > connection.getMaxFileSize()) || (offset < 0) ||
+          (offset > length) || (length > size))
+      {
+         Utils.deleteFile(to);
+         throw new IOException("Invalid getFileRange size=" + size +
+                               ", offset=" + offset + ", partial size=" + length);
+      }
+
+      // Initialize size and progress bar displays.
+      showSize(size, sizeText, progressBar);
+
+      if (tree != null)
+      {
+         if ((offset % tree.chunkSize) != 0)
          {
-            sizeText.setText(Long.toString(size / 1000));
+            throw new IOException("Invalid getFileRange offset=" + offset +
+                                  " for hash tree");
          }
 
-         if (progressBar != null)
+         // Check partial file and read rest of file.
+         RandomAccessFile partial = new RandomAccessFile(to, "rw");
+         partial.setLength(offset);
+         partial.close();
+         LinkedList        badChunks = tree.verifyFile(to, 0, offset);
+         HashTree.Verifier verifier  = tree.new Verifier((int)(offset / tree.chunkSize));
+         receiveFile(in, to, offset, size, myThread, progressBar, verifier);
+         badChunks.addAll(verifier.badChunks);
+
+         return(badChunks);
+      }
+
+      // Check overlap with partial file.
+      if (!verifyFile(in, to, offset, length - offset))
+      {
+         Utils.deleteFile(to);
+         throw new IOException("getFileRange data does not match partial file");
+      }
+
+      // Read rest of file.
+      receiveFile(in, to, length, size, myThread, progressBar, null);
+
+      return(new LinkedList());
+   }
+
+
+   // Get chunks of file that failed their hash check again.
+   public void getChunks(PeerConnection connection, String name, String code,
+                         String to, HashTree tree, LinkedList chunks)
+   throws IOException
+   {
+      RandomAccessFile file = new RandomAccessFile(to, "rw");
+
+      try {
+         for (int i = 0; i < chunks.size(); i++)
          {
-            progressBar.setMinimum(0);
-            progressBar.setMaximum((int)size);
-            progressBar.setValue(0);
+            int     chunk = ((Integer)chunks.get(i)).intValue();
+            boolean valid = false;
+
+            for (int j = 0; (j < MAX_CHUNK_RETRIES) && !valid; j++)
+            {
+               valid = getChunk(connection, name, code, file.getChannel(),
+                                tree, chunk);
+            }
+
+            if (!valid)
+            {
+               throw new IOException("Chunk " + chunk + " of " + name +
+                                     " failed hash check");
+            }
          }
+      }
+      finally {
+         file.close();
+      }
+   }
 
-         // Read file.
-         BufferedOutputStream bos = Utils.makeBOS(to);
-         int rcv = 0;
-         int nr;
 
+   // Get chunk of file by range request into file channel.
+   // Return true if the chunk matches its hash.
+   boolean getChunk(PeerConnection connection, String name, String code,
+                    FileChannel fileChannel, HashTree tree, int chunk)
+   throws IOException
+   {
+      long offset = tree.getChunkOffset(chunk);
+      int  length = tree.getChunkLength(chunk);
+
+      // Request range.
+      connection.startRequest(p2p.localPort, RANGE_REQUEST);
+      connection.putString(name);
+      connection.putString(code);
+      connection.putLong(offset);
+      connection.putLong(length);
+      connection.send();
+
+      // Get response.
+      connection.receive(SOCKET_TIME_OUT);
+
+      if (connection.getByte() != POSITIVE_RESPONSE)
+      {
+         throw new IOException("Chunk " + chunk + " of " + name + " refused");
+      }
+
+      connection.receive(SOCKET_TIME_OUT);
+
+      if ((connection.getByte() != FILE) || (connection.getLong() != tree.size) ||
+          (connection.getLong() != offset))
+      {
+         throw new IOException("Invalid chunk " + chunk + " of " + name);
+      }
+
+      // Receive chunk.
+      DataInputStream   in       = connection.in;
+      HashTree.Verifier verifier = tree.new Verifier(chunk);
+      byte[]            data     = getReceiveBuffer();
+      ByteBuffer        buffer   = ByteBuffer.wrap(data);
+      int               rcv      = 0;
+      int               nr;
+
+      try {
+         while (rcv < length)
+         {
+            if ((nr = utils.readFromStream(in, data, 0,
+                                           Math.min(data.length, length - rcv),
+                                           SOCKET_TIME_OUT)) == 0)
+            {
+               throw new IOException("getChunk time-out");
+            }
+
+            verifier.update(data, 0, nr);
+            buffer.clear();
+            buffer.limit(nr);
+
+            while (buffer.hasRemaining())
+            {
+               fileChannel.write(buffer, offset + rcv + buffer.position());
+            }
+
+            rcv += nr;
+         }
+      }
+      finally {
+         releaseReceiveBuffer(data);
+      }
+
+      return(verifier.isValid());
+   }
+
+
+   // Verify that stream data matches file data at offset.
+   boolean verifyFile(DataInputStream in, String fileName, long offset,
+                      long length) throws IOException
+   {
+      if (length == 0)
+      {
+         return(true);
+      }
+
+      RandomAccessFile file  = new RandomAccessFile(fileName, "r");
+      byte[]           data  = getReceiveBuffer();
+      int              half  = data.length / 2;
+      boolean          match = true;
+      int              nr;
+
+      try {
+         file.seek(offset);
+
+         while (length > 0)
+         {
+            nr = (int)Math.min(half, length);
+
+            if (!utils.readFullyFromStream(in, data, 0, nr, SOCKET_TIME_OUT))
+            {
+               throw new IOException("verifyFile time-out");
+            }
+
+            file.readFully(data, half, nr);
+
+            for (int i = 0; i < nr; i++)
+            {
+               if (data[i] != data[half + i])
+               {
+                  match = false;
+               }
+            }
+
+            length -= nr;
+         }
+      }
+      finally {
+         file.close();
+         releaseReceiveBuffer(data);
+      }
+
+      return(match);
+   }
+
+
+   // Initialize size and progress bar displays.
+   void showSize(long size, JTextField sizeText, JProgressBar progressBar)
+   {
+      if (sizeText != null)
+      {
+         sizeText.setText(Long.toString(size / 1000));
+      }
+
+      if (progressBar != null)
+      {
+         progressBar.setMinimum(0);
+         progressBar.setMaximum(Progress.scale(size, size));
+         progressBar.setValue(0);
+      }
+   }
+
+
+   // Receive file data from stream into file, starting at given file size.
+   // Data is read into a pooled buffer, filled with what has arrived,
+   // checked by the verifier if given, and written through the file channel.
+   long receiveFile(DataInputStream in, String to, long start, long size,
+                    Thread myThread, JProgressBar progressBar,
+                    HashTree.Verifier verifier)
+   throws IOException
+   {
+      FileOutputStream fos         = new FileOutputStream(to, start > 0);
+      FileChannel      fileChannel = fos.getChannel();
+      byte[]           data        = getReceiveBuffer();
+      ByteBuffer       buffer      = ByteBuffer.wrap(data);
+      Progress         progress    = new Progress(progressBar, size);
+      long             rcv         = start;
+      int              fill;
+      int              nr;
+
+      try {
          while (rcv < size)
          {
-            utils.waitForAvailableData(in, 1);
+            // Wait for data, then take whatever else has arrived.
+            fill = (int)Math.min(data.length, size - rcv);
 
-            if ((nr = utils.getAvailableData(in)) == 0)
+            if ((nr = utils.readFromStream(in, data, 0, fill,
+                                           SOCKET_TIME_OUT)) == 0)
             {
-               bos.close();
                utils.closeDataInputStream(in);
                throw new IOException("getFile time-out");
             }
 
-            nr = Math.min(nr, (int)(size - rcv));
+            while ((nr < fill) && (in.available() > 0))
+            {
+               nr += in.read(data, nr, fill - nr);
+            }
 
-            byte[] data = new byte[nr];
-            utils.readBytesFromStream(in, data);
             rcv += nr;
-            bos.write(data, 0, nr);
 
-            if (progressBar != null)
+            if (verifier != null)
             {
-               progressBar.setValue(rcv);
+               verifier.update(data, 0, nr);
             }
 
+            buffer.clear();
+            buffer.limit(nr);
+
+            while (buffer.hasRemaining())
+            {
+               fileChannel.write(buffer);
+            }
+
+            progress.update(rcv);
+
             if ((myThread != null) && (transferThread == myThread) &&
                 transferInterrupt)
             {
-               bos.close();
                utils.closeDataInputStream(in);
                throw new IOException("getFile interrupted");
             }
          }
 
-         bos.close();
+         progress.finish(rcv);
+      }
+      finally {
+         fos.close();
+         releaseReceiveBuffer(data);
+      }
+
+      return(rcv);
+   }
+
+
+   // Get receive buffer from pool.
+   static synchronized byte[] getReceiveBuffer()
+   {
+      if (receiveBuffers.size() > 0)
+      {
+         return((byte[])receiveBuffers.removeFirst());
+      }
+
+      return(new byte[RECEIVE_BUFFER_SIZE]);
+   }
+
+
+   // Return receive buffer to pool.
+   static synchronized void releaseReceiveBuffer(byte[] data)
+   {
+      if (receiveBuffers.size() < MAX_RECEIVE_BUFFERS)
+      {
+         receiveBuffers.addFirst(data);
       }
    }
 
 
-   // Put file/folder to output stream.
-   public void putFile(DataOutputStream out, String from, Thread myThread,
+   // Put file/folder to connection.
+   public void putFile(PeerConnection connection, String from, Thread myThread,
                        JTextField sizeText, JProgressBar progressBar)
    throws IOException
    {
       long size;
 
-      byte[] data;
-      String fileName;
-      File   file = new File(from);
+      String           fileName;
+      File             file = new File(from);
+      DataOutputStream out  = connection.out;
 
       if (!file.exists())
       {
@@ -1108,12 +1751,12 @@ public class Transfer implements Parameters, Runnable {
       if (file.isDirectory())
       {
          // Write folder header.
-         utils.writeByteToStream(out, FOLDER);
-         size = 0;
-
          LinkedList fileNames = Utils.listFiles(from);
          size = fileNames.size();
-         utils.writeLongToStream(out, size);
+         connection.startMessage();
+         connection.putByte(FOLDER);
+         connection.putLong(size);
+         connection.send();
 
          // Write files in folder.
          String path = file.getAbsolutePath();
@@ -1121,10 +1764,11 @@ public class Transfer implements Parameters, Runnable {
          for (int i = 0; i < fileNames.size(); i++)
          {
             fileName = (String)fileNames.get(i);
-            data     = (fileName + "\n").getBytes();
-            utils.writeBytesToStream(out, data, data.length);
+            connection.startMessage();
+            connection.putString(fileName);
+            connection.send();
             fileName = path + File.separator + (String)fileNames.get(i);
-            putFile(out, fileName, myThread, sizeText, progressBar);
+            putFile(connection, fileName, myThread, sizeText, progressBar);
          }
 
          if ((myThread != null) && (transferThread == myThread) &&
@@ -1137,7 +1781,6 @@ public class Transfer implements Parameters, Runnable {
       else  // not folder
 
       {     // Write file header.
-         utils.writeByteToStream(out, FILE);
          size = 0;
 
          if (file.exists() && file.canRead())
@@ -1145,47 +1788,200 @@ public class Transfer implements Parameters, Runnable {
             size = file.length();
          }
 
-         utils.writeLongToStream(out, size);
-
-         // Initialize size and progress bar displays.
-         if (sizeText != null)
+         if (size > connection.getMaxFileSize())
          {
-            sizeText.setText(Long.toString(size / 1000));
+            throw new IOException("Invalid putFile size=" + size +
+                                  ", maximum=" + connection.getMaxFileSize());
          }
 
-         if (progressBar != null)
-         {
-            progressBar.setMinimum(0);
-            progressBar.setMaximum((int)size);
-            progressBar.setValue(0);
-         }
+         connection.startMessage();
+         connection.putByte(FILE);
+         connection.putLong(size);
+         connection.send();
+
+         // Initialize size and progress bar displays.
+         showSize(size, sizeText, progressBar);
 
          // Write file.
-         BufferedInputStream bis = Utils.makeBIS(from);
-         byte[] buf = new byte[BLOCK_SIZE];
-         int sent = 0;
-         int ns;
+         putFileData(connection, from, 0, size, myThread, progressBar);
+      }
+   }
+
+
+   // Put file range of length bytes starting at offset to connection.
+   public void putFileRange(PeerConnection connection, String from, long offset,
+                            long length)
+   throws IOException
+   {
+      long size = new File(from).length();
 
-         while ((sent < size) && ((ns = bis.read(buf, 0, buf.length)) > 0))
+      if ((offset < 0) || (length < 0) || ((offset + length) > size))
+      {
+         throw new IOException("Invalid putFileRange offset=" + offset +
+                               ", length=" + length + ", size=" + size);
+      }
+
+      // Write file header.
+      connection.startMessage();
+      connection.putByte(FILE);
+      connection.putLong(size);
+      connection.putLong(offset);
+      connection.send();
+
+      // Write file range.
+      putFileData(connection, from, offset, offset + length, null, null);
+   }
+
+
+   // Put file data from offset to connection,
+   // directly from file to socket channel if possible.
+   void putFileData(PeerConnection connection, String from, long offset,
+                    long size, Thread myThread, JProgressBar progressBar)
+   throws IOException
+   {
+      SocketChannel channel = connection.socket.getChannel();
+
+      if (channel != null)
+      {
+         putFileChannel(channel, from, offset, size, myThread, progressBar);
+      }
+      else
+      {
+         putFileStream(connection.out, from, offset, size, myThread,
+                       progressBar);
+      }
+   }
+
+
+   // Put file data to socket channel without copying through the heap.
+   long putFileChannel(SocketChannel channel, String from, long offset,
+                       long size, Thread myThread, JProgressBar progressBar)
+   throws IOException
+   {
+      FileInputStream fis         = new FileInputStream(from);
+      FileChannel     fileChannel = fis.getChannel();
+      Progress        progress    = new Progress(progressBar, size);
+      long            sent        = offset;
+      long            ns;
+
+      try {
+         while ((sent < size) &&
+                ((ns = fileChannel.transferTo(sent,
+                                              Math.min(TRANSFER_CHUNK_SIZE, size - sent),
+                                              channel)) > 0))
          {
             sent += ns;
-            utils.writeBytesToStream(out, buf, ns);
 
-            if (progressBar != null)
+            progress.update(sent);
+
+            if ((myThread != null) && (transferThread == myThread) &&
+                transferInterrupt)
             {
-               progressBar.setValue(sent);
+               channel.close();
+               throw new IOException("putFile interrupted");
             }
+         }
+
+         progress.finish(sent);
+      }
+      finally {
+         fis.close();
+      }
+
+      return(sent);
+   }
+
+
+   // Put file data to stream.
+   long putFileStream(DataOutputStream out, String from, long offset,
+                      long size, Thread myThread, JProgressBar progressBar)
+   throws IOException
+   {
+      BufferedInputStream bis = Utils.makeBIS(from);
+
+      byte[]   buf      = new byte[BLOCK_SIZE];
+      Progress progress = new Progress(progressBar, size);
+      long     sent     = offset;
+      int      ns;
+
+      try {
+         if (bis.skip(offset) != offset)
+         {
+            throw new IOException("putFile cannot skip to offset " + offset);
+         }
+
+         while ((sent < size) &&
+                ((ns = bis.read(buf, 0,
+                                (int)Math.min(buf.length, size - sent))) > 0))
+         {
+            sent += ns;
+            out.write(buf, 0, ns);
+
+            progress.update(sent);
 
             if ((myThread != null) && (transferThread == myThread) &&
                 transferInterrupt)
             {
-               bis.close();
-               utils.closeDataOutputStream(out);
+               out.close();
                throw new IOException("putFile interrupted");
             }
          }
 
+         out.flush();
+         progress.finish(sent);
+      }
+      finally {
          bis.close();
       }
+
+      return(sent);
+   }
+
+
+   // Progress bar display updated at a bounded rate.
+   static class Progress {
+      JProgressBar progressBar;
+      long         size;
+      long         updateTime;
+
+      Progress(JProgressBar progressBar, long size)
+      {
+         this.progressBar = progressBar;
+         this.size        = size;
+         updateTime       = System.currentTimeMillis();
+      }
+
+
+      // Scale value of given size to progress bar range.
+      static int scale(long value, long size)
+      {
+         return((int)(value / ((size / Integer.MAX_VALUE) + 1)));
+      }
+
+
+      // Update display if due.
+      void update(long value)
+      {
+         if (progressBar != null)
+         {
+            long time = System.currentTimeMillis();
+
+            if ((time - updateTime) >= PROGRESS_FREQ)
+            {
+               updateTime = time;
+               progressBar.setValue(scale(value, size));
+            }
+         }
+      }
+
+
+      // Show final value.
+      void finish(long value)
+      {
+         if (progressBar != null)
+         {
+            progressBar.setValue(scale(value, size));
+         }
+      }
    }
 }
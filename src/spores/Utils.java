@@ -11,10 +11,10 @@ package spores;
 
 import java.io.*;
 
-import java.math.*;
-
 import java.net.*;
 
+import java.nio.channels.*;
+
 import java.util.*;
 
 
@@ -31,17 +31,50 @@ public class Utils implements Parameters {
    // Instance id.
    int id;
 
+   // Pooled peer connections.
+   ConnectionPool connectionPool;
+
    // Constructor.
    Utils()
    {
-      id = getID();
+      id             = getID();
+      connectionPool = new ConnectionPool(this);
    }
 
 
    // Create a server socket.
+   // Channel based, so that accepted sockets have channels.
    ServerSocket createServerSocket(int port) throws IOException
    {
-      return(new ServerSocket(port));
+      ServerSocketChannel channel = ServerSocketChannel.open();
+
+      try {
+         channel.socket().bind(new InetSocketAddress(port));
+      }
+      catch (IOException e) {
+         channel.close();
+         throw e;
+      }
+
+      return(channel.socket());
+   }
+
+
+   // Create a non-blocking server socket channel.
+   ServerSocketChannel createServerSocketChannel(int port) throws IOException
+   {
+      ServerSocketChannel channel = ServerSocketChannel.open();
+
+      try {
+         channel.socket().bind(new InetSocketAddress(port));
+         channel.configureBlocking(false);
+      }
+      catch (IOException e) {
+         channel.close();
+         throw e;
+      }
+
+      return(channel);
    }
 
 
@@ -61,18 +94,53 @@ public class Utils implements Parameters {
 
    // Create a socket with time-out of SOCKET_TIME_OUT.
    // Throw exception of not created in time.
+   // Channel based, so that files can be sent with FileChannel.transferTo.
    Socket createSocket(String host, int port) throws IOException
    {
-      Socket socket = null;
-      ConnectTimeOutSocketFactory socketFactory = new ConnectTimeOutSocketFactory();
+      Socket socket = SocketChannel.open().socket();
 
-      socket = socketFactory.createSocket(host, port);
-      socket.setSoTimeout(SOCKET_TIME_OUT);
+      try {
+         socket.connect(new InetSocketAddress(host, port), SOCKET_TIME_OUT);
+         socket.setSoTimeout(SOCKET_TIME_OUT);
+      }
+      catch (IOException e) {
+         socket.close();
+         throw e;
+      }
 
       return(socket);
    }
 
 
+   // Get a connection to a peer, reusing a pooled connection if possible.
+   PeerConnection openConnection(String host, int port, int localPort)
+   throws IOException
+   {
+      return(connectionPool.get(host, port, localPort));
+   }
+
+
+   // Is peer known to only accept text messages?
+   boolean isTextPeer(String host, int port)
+   {
+      return(connectionPool.isTextPeer(host, port));
+   }
+
+
+   // Return connection to pool after a completed request.
+   void releaseConnection(PeerConnection connection)
+   {
+      connectionPool.release(connection);
+   }
+
+
+   // Close connection after a failed request.
+   void closeConnection(PeerConnection connection)
+   {
+      connectionPool.close(connection);
+   }
+
+
    // Close a socket.
    void closeSocket(Socket socket) throws IOException
    {
@@ -179,7 +247,7 @@ public class Utils implements Parameters {
    // Get a DataInputStream for a socket.
    DataInputStream getDataInputStream(Socket socket) throws IOException
    {
-      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataInputStream in = new SocketDataInputStream(socket);
 
       return(in);
    }
@@ -228,6 +296,7 @@ public class Utils implements Parameters {
 
    // Wait for minimun data availability on given stream.
    // Time-out and return false if not available.
+   // Socket streams are read with blocking time-outs instead.
    boolean waitForAvailableData(DataInputStream in, int minData, int timeOut)
    throws IOException
    {
@@ -266,6 +335,77 @@ public class Utils implements Parameters {
    }
 
 
+   // Read up to length bytes from a given stream, returning as soon
+   // as some arrive. Return 0 if none arrive within timer.
+   int readFromStream(DataInputStream in, byte[] data, int offset,
+                      int length, int timer) throws IOException
+   {
+      int n;
+
+      if (in instanceof SocketDataInputStream)
+      {
+         // Block on socket with read time-out.
+         ((SocketDataInputStream)in).socket.setSoTimeout(Math.max(timer, 1));
+
+         try {
+            n = in.read(data, offset, length);
+         }
+         catch (SocketTimeoutException e) {
+            return(0);
+         }
+      }
+      else
+      {
+         if (!waitForAvailableData(in, 1, timer))
+         {
+            return(0);
+         }
+
+         n = in.read(data, offset, Math.min(length, in.available()));
+      }
+
+      if (n == -1)
+      {
+         throw new EOFException("Connection closed");
+      }
+
+      return(n);
+   }
+
+
+   // Wait for data on a given stream without reading it.
+   // Return false on time-out; throw exception if stream closed.
+   boolean waitForData(DataInputStream in, int timer) throws IOException
+   {
+      if (!(in instanceof SocketDataInputStream))
+      {
+         return(waitForAvailableData(in, 1, timer));
+      }
+
+      if (in.available() > 0)
+      {
+         return(true);
+      }
+
+      ((SocketDataInputStream)in).socket.setSoTimeout(Math.max(timer, 1));
+      in.mark(1);
+
+      try {
+         if (in.read() == -1)
+         {
+            throw new EOFException("Connection closed");
+         }
+      }
+      catch (SocketTimeoutException e) {
+         return(false);
+      }
+
+      in.reset();
+
+      return(true);
+   }
+
+
    // Read a byte from a given stream.
    // Time-out and throw exception if not available.
    byte readByteFromStream(DataInputStream in) throws IOException
@@ -279,12 +419,14 @@ public class Utils implements Parameters {
    byte readByteFromStream(DataInputStream in, int timer)
    throws IOException
    {
-      if (waitForAvailableData(in, 1, timer))
+      byte[] data = new byte[1];
+
+      if (readFromStream(in, data, 0, 1, timer) == 0)
       {
-         return(in.readByte());
+         throw new IOException("readByteFromStream time-out");
       }
 
-      throw new IOException("readByteFromStream time-out");
+      return(data[0]);
    }
 
 
@@ -311,14 +453,42 @@ public class Utils implements Parameters {
    void readBytesFromStream(DataInputStream in, byte[] data, int timer)
    throws IOException
    {
-      if (waitForAvailableData(in, data.length, timer))
+      if (!readFullyFromStream(in, data, timer))
       {
-         in.readFully(data);
+         throw new IOException("readBytesFromStream time-out");
+      }
+   }
 
-         return;
+
+   // Fill data from a given stream within timer.
+   // Return false on time-out.
+   boolean readFullyFromStream(DataInputStream in, byte[] data, int timer)
+   throws IOException
+   {
+      return(readFullyFromStream(in, data, 0, data.length, timer));
+   }
+
+
+   boolean readFullyFromStream(DataInputStream in, byte[] data, int offset,
+                               int length, int timer) throws IOException
+   {
+      long deadline = System.currentTimeMillis() + timer;
+      int  remaining;
+      int  n;
+
+      for (int i = 0; i < length; i += n)
+      {
+         remaining = (int)(deadline - System.currentTimeMillis());
+
+         if ((remaining <= 0) ||
+             ((n = readFromStream(in, data, offset + i, length - i,
+                                  remaining)) == 0))
+         {
+            return(false);
+         }
       }
 
-      throw new IOException("readBytesFromStream time-out");
+      return(true);
    }
 
 
@@ -351,13 +521,11 @@ public class Utils implements Parameters {
 
       while (!gotLine)
       {
-         if (!waitForAvailableData(in, 1, timer))
+         if (readFromStream(in, data, 0, 1, timer) == 0)
          {
             throw new IOException("readLineFromStream time-out");
          }
 
-         data[0] = in.readByte();
-
          String s = new String(data);
 
          if (s.equals("\n"))
@@ -399,12 +567,11 @@ public class Utils implements Parameters {
    // Time-out and throw exception if not available.
    long readLongFromStream(DataInputStream in) throws IOException
    {
-      if (waitForAvailableData(in, 4))
-      {
-         byte[] data = new byte[4];
-         in.readFully(data);
+      byte[] data = new byte[4];
 
-         return(Utils.bytesToLong(data));
+      if (readFullyFromStream(in, data, SOCKET_TIME_OUT))
+      {
+         return(getLong(data, 0, 4));
       }
 
       throw new IOException("readLongFromStream time-out");
@@ -421,104 +588,39 @@ public class Utils implements Parameters {
    }
 
 
-   // Get MD5 hash of given file.
+   // Get uniqueness code of given file, made by the local hash engine.
    // If folder, hash is hash of concatenated file hashes.
+   // Hashes are cached while the file is unchanged.
    public static String getMD5ForFile(String fileName)
    {
-      MD5InputStream md5in;
-      String         code = "";
-      File           file = new File(fileName);
-
-      if (!file.exists())
-      {
-         return(code);
-      }
+      return(HashCache.getCache().getCode(fileName));
+   }
 
-      if (file.isDirectory())
-      {
-         String     path      = file.getAbsolutePath();
-         LinkedList fileNames = listFiles(fileName);
 
-         for (int i = 0; i < fileNames.size(); i++)
-         {
-            fileName = (String)fileNames.get(i);
-            code     = code.concat(getMD5ForFile(path + File.separator +
-                                                 fileName));
-         }
+   // Get uniqueness code of given file made by the engine that made
+   // the given code, or empty string if that engine is unknown.
+   public static String getCodeForFile(String fileName, String code)
+   {
+      HashEngine engine = HashEngine.getEngineForCode(code);
 
-         // Hash the string.
-         code = getMD5ForString(code);
-      }
-      else
+      if (engine == null)
       {
-         // Hash file.
-         FileInputStream in = null;
-
-         try {
-            in    = new FileInputStream(fileName);
-            md5in = new MD5InputStream(in);
-
-            for (int i = 0; (i < MAX_HASH_BYTES) && (md5in.read() != -1);
-                 i++)
-            {
-            }
-
-            code = md5in.getHashString().trim();
-         }
-         catch (Exception e) {
-         }
-         finally {
-            try {
-               if (in != null)
-               {
-                  in.close();
-               }
-            }
-            catch (Exception e) {
-            }
-         }
+         return("");
       }
 
-      return(code);
+      return(HashCache.getCache(engine).getCode(fileName));
    }
 
 
    // Get MD5 hash of given string.
    public static String getMD5ForString(String string)
    {
-      MD5InputStream       md5in;
-      String               code = "";
-      ByteArrayInputStream in   = null;
-
-      try {
-         in    = new ByteArrayInputStream(string.getBytes());
-         md5in = new MD5InputStream(in);
-
-         for (int i = 0; (i < MAX_HASH_BYTES) && (md5in.read() != -1);
-              i++)
-         {
-         }
-
-         code = md5in.getHashString().trim();
-      }
-      catch (Exception e) {
-      }
-      finally {
-         try {
-            if (in != null)
-            {
-               in.close();
-            }
-         }
-         catch (Exception e) {
-         }
-      }
-
-      return(code);
+      return(HashEngine.getEngine(MD5_HASH).hashString(string));
    }
 
 
    // Recursively copy a file/folder.
+   // Folder members are copied in parallel.
    public static void copyFile(String from, String to)
    throws IOException
    {
@@ -529,28 +631,33 @@ public class Utils implements Parameters {
          return;
       }
 
+      copyFile(fromFile, new File(to));
+   }
+
+
+   // Copy existing file/folder.
+   static void copyFile(File fromFile, File toFile)
+   throws IOException
+   {
       if (fromFile.isDirectory())
       {
-         File toFile = new File(to);
          toFile.mkdir();
 
-         String fromDir = fromFile.getAbsolutePath();
-         String toDir   = toFile.getAbsolutePath();
-         String[] fileNames = fromFile.list();
-         String fileName;
+         Object[] errors = FolderScan.scan(fromFile, new CopyVisitor(toFile));
 
-         for (int i = 0; i < fileNames.length; i++)
+         for (int i = 0; (errors != null) && (i < errors.length); i++)
          {
-            fileName = fileNames[i];
-            copyFile(fromDir + File.separator + fileName,
-                     toDir + File.separator + fileName);
+            if (errors[i] != null)
+            {
+               throw (IOException)errors[i];
+            }
          }
       }
       else
       {
          // Copy file.
-         BufferedInputStream  bis = makeBIS(from);
-         BufferedOutputStream bos = makeBOS(to);
+         BufferedInputStream  bis = makeBIS(fromFile.getPath());
+         BufferedOutputStream bos = makeBOS(toFile.getPath());
          byte[] buf = new byte[BLOCK_SIZE];
          int nr;
 
@@ -566,7 +673,7 @@ public class Utils implements Parameters {
 
 
    // Delete file.
-   // If folder, recursively delete.
+   // If folder, recursively delete, members in parallel.
    public static void deleteFile(String fileName)
    {
       File file = new File(fileName);
@@ -576,23 +683,21 @@ public class Utils implements Parameters {
          return;
       }
 
-      if (file.isDirectory())
-      {
-         String path = file.getAbsolutePath();
-         String[] fileNames = file.list();
+      deleteFile(file);
+   }
 
-         for (int i = 0; i < fileNames.length; i++)
-         {
-            deleteFile(path + File.separator + fileNames[i]);
-         }
-      }
+
+   // Delete existing file/folder.
+   static void deleteFile(File file)
+   {
+      FolderScan.scan(file, new DeleteVisitor());
 
       file.delete();
    }
 
 
    // Get file size.
-   // If folder, size is recursive sum of files sizes.
+   // If folder, size is recursive sum of files sizes, scanned in parallel.
    public static long getFileSize(String fileName)
    {
       File file = new File(fileName);
@@ -602,28 +707,33 @@ public class Utils implements Parameters {
          return(0);
       }
 
-      if (file.isDirectory())
-      {
-         long   size = 0;
-         String path = file.getAbsolutePath();
-         String[] fileNames = file.list();
+      return(getFileSize(file));
+   }
 
-         for (int i = 0; i < fileNames.length; i++)
-         {
-            size += getFileSize(path + File.separator + fileNames[i]);
-         }
 
-         return(size);
-      }
-      else
+   // Get size of existing file/folder.
+   static long getFileSize(File file)
+   {
+      Object[] sizes = FolderScan.scan(file, new SizeVisitor());
+
+      if (sizes == null)
       {
          return(file.length());
       }
+
+      long size = 0;
+
+      for (int i = 0; i < sizes.length; i++)
+      {
+         size += ((Long)sizes[i]).longValue();
+      }
+
+      return(size);
    }
 
 
    // Get file count.
-   // If folder, count is recursive count of files.
+   // If folder, count is recursive count of files, scanned in parallel.
    public static long getFileCount(String fileName)
    {
       File file = new File(fileName);
@@ -633,44 +743,90 @@ public class Utils implements Parameters {
          return(0);
       }
 
+      return(getFileCount(file));
+   }
+
+
+   // Get count of existing file/folder.
+   static long getFileCount(File file)
+   {
+      Object[] counts = FolderScan.scan(file, new CountVisitor());
+
       long count = 1;
 
-      if (file.isDirectory())
+      for (int i = 0; (counts != null) && (i < counts.length); i++)
       {
-         String path = file.getAbsolutePath();
-         String[] fileNames = file.list();
-
-         for (int i = 0; i < fileNames.length; i++)
-         {
-            count += getFileCount(path + File.separator + fileNames[i]);
-         }
+         count += ((Long)counts[i]).longValue();
       }
 
       return(count);
    }
 
 
-   // Name-ordered list of files in given folder.
-   public static LinkedList listFiles(String folderName)
-   {
-      File folder = new File(folderName);
+   // Folder member copier: returns copy error or null.
+   static class CopyVisitor implements FolderScan.Visitor {
+      File toFolder;
 
-      if (!folder.exists() || !folder.isDirectory())
+      CopyVisitor(File toFolder)
       {
+         this.toFolder = toFolder;
+      }
+
+
+      public Object visit(File file)
+      {
+         try {
+            copyFile(file, new File(toFolder, file.getName()));
+         }
+         catch (IOException e) {
+            return(e);
+         }
+
          return(null);
       }
+   }
 
-      LinkedList fileList = new LinkedList();
-      String[] fileNames = folder.list();
 
-      for (int i = 0; i < fileNames.length; i++)
+   // Folder member deleter.
+   static class DeleteVisitor implements FolderScan.Visitor {
+      public Object visit(File file)
       {
-         fileList.add(fileNames[i]);
+         deleteFile(file);
+
+         return(null);
       }
+   }
 
-      Collections.sort(fileList);
 
-      return(fileList);
+   // Folder member sizer.
+   static class SizeVisitor implements FolderScan.Visitor {
+      public Object visit(File file)
+      {
+         return(Long.valueOf(getFileSize(file)));
+      }
+   }
+
+
+   // Folder member counter.
+   static class CountVisitor implements FolderScan.Visitor {
+      public Object visit(File file)
+      {
+         return(Long.valueOf(getFileCount(file)));
+      }
+   }
+
+
+   // Name-ordered list of files in given folder.
+   public static LinkedList listFiles(String folderName)
+   {
+      String[] fileNames = FolderScan.listFileNames(new File(folderName));
+
+      if (fileNames == null)
+      {
+         return(null);
+      }
+
+      return(new LinkedList(Arrays.asList(fileNames)));
    }
 
 
@@ -697,58 +853,48 @@ public class Utils implements Parameters {
    // Convert long to 4 bytes.
    public static byte[] longToBytes(long num) throws ArithmeticException
    {
-      BigInteger bigNum = new BigInteger(Long.toString(num));
-
-      byte[] data     = bigNum.toByteArray();
-      byte[] numBytes = new byte[4];
-
-      for (int i = 0; i < 4; i++)
+      if ((num < Integer.MIN_VALUE) || (num > Integer.MAX_VALUE))
       {
-         numBytes[i] = 0;
+         throw new ArithmeticException("longToBytes error");
       }
 
-      switch (data.length)
-      {
-      case 1:
-         numBytes[3] = data[0];
-
-         break;
-
-      case 2:
-         numBytes[2] = data[0];
-         numBytes[3] = data[1];
-
-         break;
+      byte[] numBytes = new byte[4];
+      putLong(num, numBytes, 0, 4);
 
-      case 3:
-         numBytes[1] = data[0];
-         numBytes[2] = data[1];
-         numBytes[3] = data[2];
+      return(numBytes);
+   }
 
-         break;
 
-      case 4:
-         numBytes[0] = data[0];
-         numBytes[1] = data[1];
-         numBytes[2] = data[2];
-         numBytes[3] = data[3];
+   // Convert bytes to long.
+   public static long bytesToLong(byte[] data)
+   {
+      return(getLong(data, 0, data.length));
+   }
 
-         break;
 
-      default:
-         throw new ArithmeticException("longToBytes error");
+   // Put low length bytes of long into data at offset, high byte first.
+   public static void putLong(long num, byte[] data, int offset, int length)
+   {
+      for (int i = offset + length - 1; i >= offset; i--)
+      {
+         data[i] = (byte)num;
+         num   >>= 8;
       }
-
-      return(numBytes);
    }
 
 
-   // Convert 4 bytes to long.
-   public static long bytesToLong(byte[] data)
+   // Get long from length bytes of data at offset, high byte first.
+   // The value is sign-extended from the high byte.
+   public static long getLong(byte[] data, int offset, int length)
    {
-      BigInteger bigNum = new BigInteger(data);
+      long num = data[offset];
+
+      for (int i = offset + 1; i < offset + length; i++)
+      {
+         num = (num << 8) | (data[i] & 0xff);
+      }
 
-      return(bigNum.longValue());
+      return(num);
    }
 
 
@@ -760,6 +906,18 @@ public class Utils implements Parameters {
    }
 
 
+   // Socket input stream: reads block with the socket read time-out.
+   // Buffered, so there must be one per socket.
+   static class SocketDataInputStream extends DataInputStream {
+      Socket socket;
+
+      SocketDataInputStream(Socket socket) throws IOException
+      {
+         super(new BufferedInputStream(socket.getInputStream(), BLOCK_SIZE));
+         this.socket = socket;
+      }
+   }
+
    // File list element.
    static class FileElem {
       String name;